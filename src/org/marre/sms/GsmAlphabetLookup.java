@@ -0,0 +1,212 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is "SMS Library for the Java platform".
+ *
+ * The Initial Developer of the Original Code is Markus Eriksson.
+ * Portions created by the Initial Developer are Copyright (C) 2002
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.marre.sms;
+
+import java.util.Arrays;
+
+/**
+ * Reverse lookup table from unicode chars to GSM alphabet values.
+ * <p>
+ * Chars in the ISO-8859-1 range are looked up in a dense table, everything
+ * else (mostly greek capitals) in a small sorted table using a binary search.
+ * The tables are built once and never modified after that.
+ */
+final class GsmAlphabetLookup
+{
+    /** Returned by {@link #get(char)} if the char has no mapping. */
+    static final int UNMAPPED = -1;
+
+    /**
+     * Flag set on values from an extension table. The char is encoded as an
+     * escape septet followed by (value &amp; 0x7f).
+     */
+    static final int EXTENSION = 0x80;
+
+    private final short[] latin1_ = new short[256];
+
+    private char[] sparseChars_ = new char[0];
+    private short[] sparseValues_ = new short[0];
+
+    /**
+     * Creates an empty lookup table.
+     */
+    GsmAlphabetLookup()
+    {
+        Arrays.fill(latin1_, (short) UNMAPPED);
+    }
+
+    /**
+     * Adds a mapping to the table.
+     * <p>
+     * The first mapping added for a char wins, later mappings for the same
+     * char are ignored. Only intended to be used while building the table.
+     *
+     * @param ch The unicode char
+     * @param value The value to map the char to
+     */
+    void add(char ch, int value)
+    {
+        if (ch < latin1_.length)
+        {
+            if (latin1_[ch] == UNMAPPED)
+            {
+                latin1_[ch] = (short) value;
+            }
+            return;
+        }
+
+        int pos = Arrays.binarySearch(sparseChars_, ch);
+        if (pos >= 0)
+        {
+            return;
+        }
+        pos = -(pos + 1);
+
+        char[] chars = new char[sparseChars_.length + 1];
+        short[] values = new short[sparseValues_.length + 1];
+
+        System.arraycopy(sparseChars_, 0, chars, 0, pos);
+        System.arraycopy(sparseValues_, 0, values, 0, pos);
+        chars[pos] = ch;
+        values[pos] = (short) value;
+        System.arraycopy(sparseChars_, pos, chars, pos + 1, sparseChars_.length - pos);
+        System.arraycopy(sparseValues_, pos, values, pos + 1, sparseValues_.length - pos);
+
+        sparseChars_ = chars;
+        sparseValues_ = values;
+    }
+
+    /**
+     * Adds all chars in the given table, the index of the char is used as value.
+     * <p>
+     * The escape position (0x1B) is skipped, it never represents a char.
+     *
+     * @param table The alphabet table
+     */
+    void addTable(char[] table)
+    {
+        for (int i = 0; i < table.length; i++)
+        {
+            if (i != SmsPduUtil.EXT_TABLE_PREFIX)
+            {
+                add(table[i], i);
+            }
+        }
+    }
+
+    /**
+     * Adds all pairs in the given table.
+     * <p>
+     * The table is encoded as pairs with unicode value and gsm value, like
+     * SmsPduUtil.GSM_DEFAULT_ALPHABET_ALTERNATIVES.
+     *
+     * @param pairs The pairs
+     */
+    void addPairs(char[] pairs)
+    {
+        addPairs(pairs, 0);
+    }
+
+    /**
+     * Adds all pairs in the given table with the given flags or:ed into the
+     * value.
+     *
+     * @param pairs The pairs
+     * @param flags Flags to set on each value, for example EXTENSION
+     */
+    void addPairs(char[] pairs, int flags)
+    {
+        for (int i = 0; i < pairs.length; i += 2)
+        {
+            add(pairs[i], pairs[i + 1] | flags);
+        }
+    }
+
+    /**
+     * Looks up the given char.
+     *
+     * @param ch The unicode char
+     * @return The value or UNMAPPED if the char isn't in the table
+     */
+    int get(char ch)
+    {
+        if (ch < latin1_.length)
+        {
+            return latin1_[ch];
+        }
+
+        int low = 0;
+        int high = sparseChars_.length - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            char midCh = sparseChars_[mid];
+
+            if (midCh < ch)
+            {
+                low = mid + 1;
+            }
+            else if (midCh > ch)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return sparseValues_[mid];
+            }
+        }
+
+        return UNMAPPED;
+    }
+
+    /**
+     * Returns the number of septets needed to encode the given char.
+     *
+     * @param ch The unicode char
+     * @return 1, 2 for chars from an extension table or 0 if the char isn't
+     * in the table
+     */
+    int getSeptetWidth(char ch)
+    {
+        int value = get(ch);
+
+        if (value == UNMAPPED)
+        {
+            return 0;
+        }
+
+        return ((value & EXTENSION) != 0) ? 2 : 1;
+    }
+}
@@ -0,0 +1,282 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is "SMS Library for the Java platform".
+ *
+ * The Initial Developer of the Original Code is Markus Eriksson.
+ * Portions created by the Initial Developer are Copyright (C) 2002
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.marre.sms;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Packed GSM 03.38 7-bit charset ("X-GSM-7-PACKED").
+ * <p>
+ * Chars are converted with the SmsPduUtil alphabet tables and packed into
+ * septets the same way as SmsPduUtil.getSeptets() does. The encoder and
+ * decoder keep the partial septet between calls, so a message can be
+ * streamed through any number of buffers.
+ * <p>
+ * When the last octet has 7 unused bits the encoder fills them with a CR
+ * and the decoder drops a CR found in that position, as described in
+ * GSM 03.38 6.1.2.3.1. Chars from the extension table are encoded as an
+ * escape sequence, chars that aren't in the GSM alphabet are encoded as '?'.
+ */
+public class GsmPackedCharset extends Charset
+{
+    /** The canonical name of this charset. */
+    public static final String NAME = "X-GSM-7-PACKED";
+
+    /** Shared instance. */
+    public static final GsmPackedCharset INSTANCE = new GsmPackedCharset();
+
+    private static final int CR = 0x0D;
+
+    /**
+     * Creates the charset.
+     */
+    public GsmPackedCharset()
+    {
+        super(NAME, null);
+    }
+
+    public boolean contains(Charset cs)
+    {
+        return (cs instanceof GsmPackedCharset);
+    }
+
+    public CharsetDecoder newDecoder()
+    {
+        return new Decoder(this);
+    }
+
+    public CharsetEncoder newEncoder()
+    {
+        return new Encoder(this);
+    }
+
+    /**
+     * Packs chars into septets.
+     */
+    private static class Encoder extends CharsetEncoder
+    {
+        /** Bits that hasn't been written yet. */
+        private int rest_;
+        /** Number of bits in rest_. */
+        private int restBits_;
+
+        Encoder(Charset cs)
+        {
+            super(cs, 7.0f / 8.0f, 2.0f, new byte[] {'?'});
+        }
+
+        public boolean isLegalReplacement(byte[] repl)
+        {
+            // A single '?' is packed as a septet, no need to decode it
+            return true;
+        }
+
+        protected CoderResult encodeLoop(CharBuffer in, ByteBuffer out)
+        {
+            while (in.hasRemaining())
+            {
+                int gsmChar = SmsPduUtil.lookupGsmChar(in.get(in.position()));
+                if (gsmChar == GsmAlphabetLookup.UNMAPPED)
+                {
+                    gsmChar = '?';
+                }
+
+                boolean extension = ((gsmChar & GsmAlphabetLookup.EXTENSION) != 0);
+                int nSeptets = extension ? 2 : 1;
+
+                if (out.remaining() < (restBits_ + nSeptets * 7) / 8)
+                {
+                    return CoderResult.OVERFLOW;
+                }
+                in.get();
+
+                if (extension)
+                {
+                    putSeptet(out, SmsPduUtil.EXT_TABLE_PREFIX);
+                }
+                putSeptet(out, gsmChar & 0x7f);
+            }
+
+            return CoderResult.UNDERFLOW;
+        }
+
+        private void putSeptet(ByteBuffer out, int septet)
+        {
+            rest_ |= septet << restBits_;
+            restBits_ += 7;
+
+            if (restBits_ >= 8)
+            {
+                out.put((byte) rest_);
+                rest_ >>>= 8;
+                restBits_ -= 8;
+            }
+        }
+
+        protected CoderResult implFlush(ByteBuffer out)
+        {
+            if (restBits_ > 0)
+            {
+                if (!out.hasRemaining())
+                {
+                    return CoderResult.OVERFLOW;
+                }
+
+                if (restBits_ == 1)
+                {
+                    // 7 free bits, pad with CR instead of '@'
+                    rest_ |= CR << 1;
+                }
+
+                out.put((byte) rest_);
+                rest_ = 0;
+                restBits_ = 0;
+            }
+
+            return CoderResult.UNDERFLOW;
+        }
+
+        protected void implReset()
+        {
+            rest_ = 0;
+            restBits_ = 0;
+        }
+    }
+
+    /**
+     * Unpacks septets into chars.
+     */
+    private static class Decoder extends CharsetDecoder
+    {
+        /** Bits that hasn't been decoded yet. */
+        private int rest_;
+        /** Number of bits in rest_. */
+        private int restBits_;
+        /** A CR in the padding position that is only written if more data follows. */
+        private boolean pendingCr_;
+        /** The previous septet was an escape. */
+        private boolean escape_;
+
+        Decoder(Charset cs)
+        {
+            super(cs, 8.0f / 7.0f, 2.0f);
+        }
+
+        protected CoderResult decodeLoop(ByteBuffer in, CharBuffer out)
+        {
+            while (in.hasRemaining())
+            {
+                int nChars = (restBits_ + 8) / 7;
+                if (pendingCr_)
+                {
+                    nChars++;
+                }
+
+                if (out.remaining() < nChars)
+                {
+                    return CoderResult.OVERFLOW;
+                }
+
+                if (pendingCr_)
+                {
+                    out.put((char) CR);
+                    pendingCr_ = false;
+                }
+
+                rest_ |= (in.get() & 0xff) << restBits_;
+                restBits_ += 8;
+
+                while (restBits_ >= 7)
+                {
+                    int septet = rest_ & 0x7f;
+                    rest_ >>>= 7;
+                    restBits_ -= 7;
+
+                    if (escape_)
+                    {
+                        out.put(SmsPduUtil.fromGsmExtensionCharset((byte) septet));
+                        escape_ = false;
+                    }
+                    else if (septet == SmsPduUtil.EXT_TABLE_PREFIX)
+                    {
+                        escape_ = true;
+                    }
+                    else if ((restBits_ == 0) && (septet == CR))
+                    {
+                        // Last septet in a 7 octet block, might be padding
+                        pendingCr_ = true;
+                    }
+                    else
+                    {
+                        out.put(SmsPduUtil.fromGsmCharset((byte) septet));
+                    }
+                }
+            }
+
+            return CoderResult.UNDERFLOW;
+        }
+
+        protected CoderResult implFlush(CharBuffer out)
+        {
+            if (escape_)
+            {
+                // Escape without a following septet
+                if (!out.hasRemaining())
+                {
+                    return CoderResult.OVERFLOW;
+                }
+                out.put(SmsPduUtil.fromGsmCharset((byte) SmsPduUtil.EXT_TABLE_PREFIX));
+                escape_ = false;
+            }
+
+            // A CR in the padding position at the end is dropped
+            pendingCr_ = false;
+            return CoderResult.UNDERFLOW;
+        }
+
+        protected void implReset()
+        {
+            rest_ = 0;
+            restBits_ = 0;
+            pendingCr_ = false;
+            escape_ = false;
+        }
+    }
+}
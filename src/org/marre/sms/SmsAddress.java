@@ -34,6 +34,10 @@
  * ***** END LICENSE BLOCK ***** */
 package org.marre.sms;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
 /**
  * Represents an phonenumber in SMSj.
  * <p>
@@ -46,6 +50,9 @@ package org.marre.sms;
  * - 11 alphanumeric chars (if TON == TON_ALPHANUMERIC).
  * <p>
  * Look in SmsConstants for definitions of TON and NPI.
+ * <p>
+ * The address is encoded in the TP-DA/TP-OA format once when the object is
+ * created, the encoded form is reused for every PDU sent to the address.
  *
  * @author Markus Eriksson
  * @version $Id: SmsAddress.java 410 2006-03-13 19:48:31Z c95men $
@@ -59,6 +66,12 @@ public class SmsAddress
 
     private String address_;
 
+    /**
+     * The address in TP-DA/TP-OA format: length in semi octets, type of
+     * address and BCD digits (or packed septets for alphanumeric addresses).
+     */
+    private byte[] encoded_;
+
     /**
      * Creates an SmsAddress object.
      * <p>
@@ -157,6 +170,38 @@ public class SmsAddress
                 }
             }
         }
+
+        encoded_ = encode();
+    }
+
+    private byte[] encode()
+    {
+        byte[] encoded;
+
+        if (ton_ == SmsConstants.TON_ALPHANUMERIC)
+        {
+            byte[] septets = SmsPduUtil.toGsmCharset(address_);
+            int nOctets = SmsPduUtil.getSeptetOctets(septets.length);
+
+            encoded = new byte[2 + nOctets];
+            // Length is the number of semi octets that are used
+            encoded[0] = (byte) ((septets.length * 7 + 3) / 4);
+            SmsPduUtil.packSeptets(septets, 0, septets.length, encoded, 2);
+        }
+        else
+        {
+            int nDigits = address_.length();
+
+            encoded = new byte[2 + SmsPduUtil.getBcdOctets(nDigits)];
+            // Length is the number of digits
+            encoded[0] = (byte) nDigits;
+            SmsPduUtil.writeBcdNumber(address_, encoded, 2);
+        }
+
+        // Type Of Address
+        encoded[1] = (byte) (0x80 | (ton_ << 4) | npi_);
+
+        return encoded;
     }
 
     /**
@@ -192,5 +237,60 @@ public class SmsAddress
     {
         return npi_;
     }
+
+    /**
+     * Returns the size of the address in TP-DA/TP-OA format.
+     *
+     * @return Number of octets
+     */
+    public int getEncodedLength()
+    {
+        return encoded_.length;
+    }
+
+    /**
+     * Writes the address in TP-DA/TP-OA format.
+     * <p>
+     * - 1:st octet - length of address in semi octets<br>
+     * - 2:nd octet - type of address, bit 7 is always 1, bit 4-6 TON and
+     *   bit 0-3 NPI<br>
+     * - n octets - BCD digits, or GSM 7-bit packed chars for alphanumeric
+     *   addresses<br>
+     *
+     * @param dest Where to write the address, must have room for
+     * getEncodedLength() octets
+     * @param offset Offset in dest
+     * @return Number of octets written
+     */
+    public int writeTo(byte[] dest, int offset)
+    {
+        System.arraycopy(encoded_, 0, dest, offset, encoded_.length);
+        return encoded_.length;
+    }
+
+    /**
+     * Writes the address in TP-DA/TP-OA format at the position of the given
+     * buffer.
+     *
+     * @param out Buffer to write to
+     * @return Number of octets written
+     */
+    public int writeTo(ByteBuffer out)
+    {
+        out.put(encoded_);
+        return encoded_.length;
+    }
+
+    /**
+     * Writes the address in TP-DA/TP-OA format to the given stream.
+     *
+     * @param os Stream to write to
+     * @throws IOException Thrown if failing to write to the stream
+     */
+    public void writeTo(OutputStream os)
+        throws IOException
+    {
+        os.write(encoded_);
+    }
 }
 
@@ -34,13 +34,10 @@
  * ***** END LICENSE BLOCK ***** */
 package org.marre.sms;
 
-import java.util.Random;
-
 /**
  * Baseclass for messages that needs to be concatenated.
  * <p>- Only usable for messages that uses the same UDH fields for all message
- * parts. <br>- This class could be better written. There are several parts
- * that are copy- pasted. <br>- The septet coding could be a bit optimized.
+ * parts. <br>- The segmentation is done by SmsPduIterator.
  * <br>
  * 
  * @author Markus Eriksson
@@ -48,7 +45,70 @@ import java.util.Random;
  */
 public abstract class SmsConcatMessage implements SmsMessage
 {
-    private static Random rnd_ = new Random();
+    /** Max size of the UD field in one PDU, in octets. */
+    static final int MAX_UD_OCTETS = 140;
+
+    /** Size of the UDHL and a 8-bit concat UDH element, in octets. */
+    static final int CONCAT_UDH_OCTETS = 6;
+
+    private static volatile SmsConcatRefAllocator defaultRefAllocator_ = new SmsConcatRefCounter();
+
+    /**
+     * Sets the allocator that gives concatenated messages their reference
+     * numbers.
+     * <p>
+     * The default only uses 8-bit reference numbers, set a
+     * new SmsConcatRefCounter(true) to allow 16-bit ones.
+     * 
+     * @param allocator The allocator
+     */
+    public static void setDefaultRefAllocator(SmsConcatRefAllocator allocator)
+    {
+        if (allocator == null)
+        {
+            throw new IllegalArgumentException("allocator cannot be null.");
+        }
+
+        defaultRefAllocator_ = allocator;
+    }
+
+    /**
+     * Returns the allocator that gives concatenated messages their
+     * reference numbers.
+     * 
+     * @return The allocator
+     */
+    public static SmsConcatRefAllocator getDefaultRefAllocator()
+    {
+        return defaultRefAllocator_;
+    }
+
+    /**
+     * Returns the number of octets left for user data in a PDU that isn't
+     * concatenated.
+     * 
+     * @param udhLength Size of the UDH elements, as returned by
+     * SmsUdhUtil.getTotalSize(). The UDHL octet is added if it is > 0.
+     * @return Number of octets
+     */
+    static int getMaxUdOctets(int udhLength)
+    {
+        return MAX_UD_OCTETS - ((udhLength > 0) ? (udhLength + 1) : 0);
+    }
+
+    /**
+     * Returns the number of octets left for user data in one PDU of a
+     * concatenated message.
+     * 
+     * @param udhLength Size of the UDH elements, as returned by
+     * SmsUdhUtil.getTotalSize(). The 8-bit concat element is added, add one
+     * for a 16-bit concat element.
+     * @return Number of octets
+     */
+    static int getMaxConcatUdOctets(int udhLength)
+    {
+        return MAX_UD_OCTETS - CONCAT_UDH_OCTETS - udhLength;
+    }
 
     /**
      * Creates an empty SmsConcatMessage.
@@ -75,256 +135,64 @@ public abstract class SmsConcatMessage implements SmsMessage
      */
     public abstract SmsUdhElement[] getUdhElements();
 
-    private SmsPdu[] createOctalPdus(SmsUdhElement[] udhElements, SmsUserData ud, int maxBytes)
+    /**
+     * Converts this message into SmsPdu:s
+     * <p>
+     * If the message is too long to fit in one SmsPdu the message is divided
+     * into many SmsPdu:s with a concat pdu UDH element.
+     * 
+     * @return Returns the message as SmsPdu:s
+     */
+    public SmsPdu[] getPdus()
     {
-        int nMaxChars;
-        int nMaxConcatChars;
-        SmsPdu[] smsPdus = null;
-
-        // 8-bit concat header is 6 bytes...
-        nMaxConcatChars = maxBytes - 6;
-        nMaxChars = maxBytes;
-
-        if (ud.getLength() <= nMaxChars)
-        {
-            smsPdus = new SmsPdu[]{new SmsPdu(udhElements, ud)};
-        }
-        else
-        {
-            int refno = rnd_.nextInt(256);
-
-            // Calculate number of SMS needed
-            int nSms = ud.getLength() / nMaxConcatChars;
-            if ((ud.getLength() % nMaxConcatChars) > 0)
-            {
-                nSms += 1;
-            }
-            smsPdus = new SmsPdu[nSms];
-
-            // Calculate number of UDHI
-            SmsUdhElement[] pduUdhElements = null;
-            if (udhElements == null)
-            {
-                pduUdhElements = new SmsUdhElement[1];
-            }
-            else
-            {
-                pduUdhElements = new SmsUdhElement[udhElements.length + 1];
-
-                // Copy the UDH headers
-                for (int j = 0; j < udhElements.length; j++)
-                {
-                    // Leave position pduUdhElements[0] for the concat UDHI
-                    pduUdhElements[j + 1] = udhElements[j];
-                }
-            }
-
-            // Create pdus
-            for (int i = 0; i < nSms; i++)
-            {
-                byte[] pduUd;
-                int udBytes;
-                int udLength;
-                int udOffset;
-
-                // Create concat header
-                pduUdhElements[0] = SmsUdhUtil.get8BitConcatUdh(refno, nSms, i + 1);
-
-                // Create
-                // Must concatenate messages
-                // Calc pdu length
-                udOffset = nMaxConcatChars * i;
-                udBytes = ud.getLength() - udOffset;
-                if (udBytes > nMaxConcatChars)
-                {
-                    udBytes = nMaxConcatChars;
-                }
-                udLength = udBytes;
-
-                pduUd = new byte[udBytes];
-                SmsPduUtil.arrayCopy(ud.getData(), udOffset, pduUd, 0, udBytes);
-                smsPdus[i] = new SmsPdu(pduUdhElements, pduUd, udLength, ud.getDcs());
-            }
-        }
-        return smsPdus;
+        return getPdus(null);
     }
 
-    private SmsPdu[] createUnicodePdus(SmsUdhElement[] udhElements, SmsUserData ud, int maxBytes)
+    /**
+     * Converts this message into SmsPdu:s for the given destination
+     * <p>
+     * The destination is used to pick a concat reference number that isn't
+     * used by another message to the same destination.
+     * 
+     * @param destination The destination, null if it isn't known
+     * @return Returns the message as SmsPdu:s
+     */
+    public SmsPdu[] getPdus(SmsAddress destination)
     {
-        int nMaxConcatChars;
-        SmsPdu[] smsPdus = null;
-
-        // 8-bit concat header is 6 bytes...
-        nMaxConcatChars = (maxBytes - 6) / 2;
+        SmsPduIterator pdus = getPduIterator(destination);
+        SmsPdu[] smsPdus = new SmsPdu[pdus.getPduCount()];
 
-        if (ud.getLength() <= maxBytes)
+        for (int i = 0; i < smsPdus.length; i++)
         {
-            smsPdus = new SmsPdu[]{new SmsPdu(udhElements, ud)};
+            smsPdus[i] = pdus.next();
         }
-        else
-        {
-            int refno = rnd_.nextInt(256);
 
-            // Calculate number of SMS needed
-            int nSms = (ud.getLength() / 2) / nMaxConcatChars;
-            if (((ud.getLength() / 2) % nMaxConcatChars) > 0)
-            {
-                nSms += 1;
-            }
-            smsPdus = new SmsPdu[nSms];
-
-            // Calculate number of UDHI
-            SmsUdhElement[] pduUdhElements = null;
-            if (udhElements == null)
-            {
-                pduUdhElements = new SmsUdhElement[1];
-            }
-            else
-            {
-                pduUdhElements = new SmsUdhElement[udhElements.length + 1];
-
-                // Copy the UDH headers
-                for (int j = 0; j < udhElements.length; j++)
-                {
-                    // Leave position pduUdhElements[0] for the concat UDHI
-                    pduUdhElements[j + 1] = udhElements[j];
-                }
-            }
-
-            // Create pdus
-            for (int i = 0; i < nSms; i++)
-            {
-                byte[] pduUd;
-                int udBytes;
-                int udLength;
-                int udOffset;
-
-                // Create concat header
-                pduUdhElements[0] = SmsUdhUtil.get8BitConcatUdh(refno, nSms, i + 1);
-
-                // Create
-                // Must concatenate messages
-                // Calc pdu length
-                udOffset = nMaxConcatChars * i;
-                udLength = (ud.getLength() / 2) - udOffset;
-                if (udLength > nMaxConcatChars)
-                {
-                    udLength = nMaxConcatChars;
-                }
-                udBytes = udLength * 2;
-
-                pduUd = new byte[udBytes];
-                SmsPduUtil.arrayCopy(ud.getData(), udOffset * 2, pduUd, 0, udBytes);
-                smsPdus[i] = new SmsPdu(pduUdhElements, pduUd, udBytes, ud.getDcs());
-            }
-        }
         return smsPdus;
     }
 
-    private SmsPdu[] createSeptetPdus(SmsUdhElement[] udhElements, SmsUserData ud, int maxBytes)
+    /**
+     * Returns an iterator that creates the SmsPdu:s of this message one at a
+     * time.
+     * <p>
+     * The pdus are the same as the ones returned by getPdus(), but only the
+     * current segment needs to be kept in memory.
+     * 
+     * @return An iterator over the pdus
+     */
+    public SmsPduIterator getPduIterator()
     {
-        int nMaxChars;
-        int nMaxConcatChars;
-        SmsPdu[] smsPdus = null;
-
-        // 8-bit concat header is 6 bytes...
-        nMaxConcatChars = ((maxBytes - 6) * 8) / 7;
-        nMaxChars = (maxBytes * 8) / 7;
-
-        if (ud.getLength() <= nMaxChars)
-        {
-            smsPdus = new SmsPdu[]{new SmsPdu(udhElements, ud)};
-        }
-        else
-        {
-            int refno = rnd_.nextInt(256);
-
-            // Calculate number of SMS needed
-            int nSms = ud.getLength() / nMaxConcatChars;
-            if ((ud.getLength() % nMaxConcatChars) > 0)
-            {
-                nSms += 1;
-            }
-            smsPdus = new SmsPdu[nSms];
-
-            // Calculate number of UDHI
-            SmsUdhElement[] pduUdhElements = null;
-            if (udhElements == null)
-            {
-                pduUdhElements = new SmsUdhElement[1];
-            }
-            else
-            {
-                pduUdhElements = new SmsUdhElement[udhElements.length + 1];
-
-                // Copy the UDH headers
-                for (int j = 0; j < udhElements.length; j++)
-                {
-                    // Leave position pduUdhElements[0] for the concat UDHI
-                    pduUdhElements[j + 1] = udhElements[j];
-                }
-            }
-
-            // Convert septets into a string...
-            String msg = SmsPduUtil.readSeptets(ud.getData(), ud.getLength());
-
-            // Create pdus
-            for (int i = 0; i < nSms; i++)
-            {
-                byte[] pduUd;
-                int udOffset;
-                int udLength;
-
-                // Create concat header
-                pduUdhElements[0] = SmsUdhUtil.get8BitConcatUdh(refno, nSms, i + 1);
-
-                // Create
-                // Must concatenate messages
-                // Calc pdu length
-                udOffset = nMaxConcatChars * i;
-                udLength = ud.getLength() - udOffset;
-                if (udLength > nMaxConcatChars)
-                {
-                    udLength = nMaxConcatChars;
-                }
-
-                pduUd = SmsPduUtil.getSeptets(msg.substring(udOffset, udOffset + udLength));
-                smsPdus[i] = new SmsPdu(pduUdhElements, pduUd, udLength, ud.getDcs());
-            }
-        }
-        return smsPdus;
+        return getPduIterator(null);
     }
 
     /**
-     * Converts this message into SmsPdu:s
-     * <p>
-     * If the message is too long to fit in one SmsPdu the message is divided
-     * into many SmsPdu:s with a 8-bit concat pdu UDH element.
+     * Returns an iterator that creates the SmsPdu:s of this message for the
+     * given destination one at a time.
      * 
-     * @return Returns the message as SmsPdu:s
+     * @param destination The destination, null if it isn't known
+     * @return An iterator over the pdus
      */
-    public SmsPdu[] getPdus()
+    public SmsPduIterator getPduIterator(SmsAddress destination)
     {
-        SmsPdu[] smsPdus;
-        SmsUserData ud = getUserData();
-        SmsUdhElement[] udhElements = getUdhElements();        
-        int udhLength = SmsUdhUtil.getTotalSize(udhElements);
-        int nBytesLeft = 140 - udhLength;
-
-        switch (ud.getDcs().getAlphabet())
-        {
-        case SmsDcs.ALPHABET_GSM:
-            smsPdus = createSeptetPdus(udhElements, ud, nBytesLeft);
-            break;
-        case SmsDcs.ALPHABET_UCS2:
-            smsPdus = createUnicodePdus(udhElements, ud, nBytesLeft);
-            break;
-        case SmsDcs.ALPHABET_8BIT:
-        default:
-            smsPdus = createOctalPdus(udhElements, ud, nBytesLeft);
-            break;
-        }
-
-        return smsPdus;
+        return new SmsPduIterator(getUdhElements(), getUserData(), defaultRefAllocator_, destination);
     }
 }
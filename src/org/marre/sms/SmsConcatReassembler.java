@@ -0,0 +1,384 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is "SMS Library for the Java platform".
+ *
+ * The Initial Developer of the Original Code is Markus Eriksson.
+ * Portions created by the Initial Developer are Copyright (C) 2002
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.marre.sms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Puts the parts of incoming concatenated messages back together.
+ * <p>
+ * Parts are matched on originator and the reference number and part count
+ * of the 8-bit or 16-bit concat UDH element. When all parts of a message
+ * have arrived they are passed to the listener in order. Parts without a
+ * concat element are passed on at once.
+ * <p>
+ * Messages that don't get all their parts within the timeout, or that are
+ * pushed out because the pending parts take more than the byte limit, are
+ * passed to the listener with the parts that did arrive, oldest first.
+ * Expired messages are checked for each time a part is added, call
+ * flushExpired() to check without adding a part.
+ * <p>
+ * All methods are thread safe. The listener is called without holding any
+ * lock, from the thread that added the part.
+ *
+ * @param <T> The type of the parts, for example SmsPdu or the decoded text
+ */
+public class SmsConcatReassembler<T>
+{
+    /**
+     * Receives the reassembled messages.
+     *
+     * @param <T> The type of the parts
+     */
+    public interface Listener<T>
+    {
+        /**
+         * Called with the parts of a message.
+         *
+         * @param originator The originator given when the parts were added
+         * @param parts The parts in order
+         * @param complete false if some parts are missing since the message
+         * expired or was pushed out
+         */
+        void messageReassembled(String originator, List<T> parts, boolean complete);
+    }
+
+    /** Added to 16-bit reference numbers to keep them apart from 8-bit ones. */
+    private static final int WIDE_REF = 0x10000;
+
+    private final Listener<T> listener_;
+    private final long timeout_;
+    private final int maxPendingBytes_;
+
+    /** Incomplete messages, oldest first. */
+    private final LinkedHashMap<Key, Pending<T>> pending_ = new LinkedHashMap<Key, Pending<T>>();
+    private int pendingBytes_;
+
+    private final SmsUdhCursor cursor_ = new SmsUdhCursor();
+
+    /** Concat element of the last parsed UDH. */
+    private int ref_;
+    private int total_;
+    private int seq_;
+
+    /**
+     * Creates a reassembler.
+     *
+     * @param listener Receives the reassembled messages
+     * @param timeout Time in ms to wait for the rest of a message
+     * @param maxPendingBytes Max size of all pending parts, as given to add()
+     */
+    public SmsConcatReassembler(Listener<T> listener, long timeout, int maxPendingBytes)
+    {
+        if (listener == null)
+        {
+            throw new IllegalArgumentException("listener cannot be null.");
+        }
+
+        listener_ = listener;
+        timeout_ = timeout;
+        maxPendingBytes_ = maxPendingBytes;
+    }
+
+    /**
+     * Adds a part.
+     *
+     * @param originator The originator of the part, may be null
+     * @param udh The UDH, starting with the UDHL octet. May be null.
+     * @param part The part
+     * @param size Size of the part in bytes, counted against the byte limit
+     */
+    public void add(String originator, byte[] udh, T part, int size)
+    {
+        add(originator, udh, 0, part, size);
+    }
+
+    /**
+     * Adds a part.
+     *
+     * @param originator The originator of the part, may be null
+     * @param udh Array with the UDH, may be null
+     * @param udhOffset Position of the UDHL octet in udh, negative if there
+     * isn't any UDH
+     * @param part The part
+     * @param size Size of the part in bytes, counted against the byte limit
+     */
+    public void add(String originator, byte[] udh, int udhOffset, T part, int size)
+    {
+        List<Pending<T>> ready = new ArrayList<Pending<T>>();
+        boolean single = false;
+
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+
+            removeExpired(now, ready);
+
+            if (!parseConcat(udh, udhOffset) || (total_ == 1))
+            {
+                single = true;
+            }
+            else
+            {
+                Key key = new Key(originator, ref_, total_);
+                Pending<T> msg = pending_.get(key);
+
+                if (msg == null)
+                {
+                    msg = new Pending<T>(originator, total_, now);
+                    pending_.put(key, msg);
+                }
+
+                // A repeated part is dropped
+                if (msg.parts_[seq_ - 1] == null)
+                {
+                    msg.parts_[seq_ - 1] = part;
+                    msg.received_++;
+                    msg.bytes_ += size;
+                    pendingBytes_ += size;
+
+                    if (msg.isComplete())
+                    {
+                        pending_.remove(key);
+                        pendingBytes_ -= msg.bytes_;
+                        ready.add(msg);
+                    }
+                }
+
+                // Push out the oldest messages until below the limit
+                Iterator<Pending<T>> iter = pending_.values().iterator();
+                while ((pendingBytes_ > maxPendingBytes_) && iter.hasNext())
+                {
+                    Pending<T> oldest = iter.next();
+                    iter.remove();
+                    pendingBytes_ -= oldest.bytes_;
+                    ready.add(oldest);
+                }
+            }
+        }
+
+        deliver(ready);
+
+        if (single)
+        {
+            listener_.messageReassembled(originator, Collections.singletonList(part), true);
+        }
+    }
+
+    /**
+     * Passes messages that have waited longer than the timeout to the
+     * listener.
+     */
+    public void flushExpired()
+    {
+        List<Pending<T>> ready = new ArrayList<Pending<T>>();
+
+        synchronized (this)
+        {
+            removeExpired(System.currentTimeMillis(), ready);
+        }
+
+        deliver(ready);
+    }
+
+    /**
+     * Passes all pending messages to the listener, oldest first.
+     */
+    public void flushAll()
+    {
+        List<Pending<T>> ready;
+
+        synchronized (this)
+        {
+            ready = new ArrayList<Pending<T>>(pending_.values());
+            pending_.clear();
+            pendingBytes_ = 0;
+        }
+
+        deliver(ready);
+    }
+
+    /**
+     * Returns the number of messages that wait for more parts.
+     *
+     * @return Number of pending messages
+     */
+    public synchronized int getPendingCount()
+    {
+        return pending_.size();
+    }
+
+    /**
+     * Returns the size of all pending parts.
+     *
+     * @return Size in bytes, as given to add()
+     */
+    public synchronized int getPendingBytes()
+    {
+        return pendingBytes_;
+    }
+
+    private void removeExpired(long now, List<Pending<T>> ready)
+    {
+        Iterator<Pending<T>> iter = pending_.values().iterator();
+        while (iter.hasNext())
+        {
+            Pending<T> oldest = iter.next();
+            if (now - oldest.created_ < timeout_)
+            {
+                break;
+            }
+
+            iter.remove();
+            pendingBytes_ -= oldest.bytes_;
+            ready.add(oldest);
+        }
+    }
+
+    private void deliver(List<Pending<T>> ready)
+    {
+        for (int i = 0; i < ready.size(); i++)
+        {
+            Pending<T> msg = ready.get(i);
+            listener_.messageReassembled(msg.originator_, msg.getParts(), msg.isComplete());
+        }
+    }
+
+    /**
+     * Finds the concat element in the UDH and stores it in ref_, total_ and
+     * seq_.
+     *
+     * @return false if there isn't any valid concat element
+     */
+    private boolean parseConcat(byte[] udh, int offset)
+    {
+        cursor_.reset(udh, offset);
+
+        while (cursor_.next())
+        {
+            if (cursor_.isConcat())
+            {
+                ref_ = cursor_.isConcat16Bit() ? (WIDE_REF | cursor_.getConcatRef()) : cursor_.getConcatRef();
+                total_ = cursor_.getConcatTotal();
+                seq_ = cursor_.getConcatSeq();
+
+                return (total_ > 0) && (seq_ > 0) && (seq_ <= total_);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Identifies a concatenated message.
+     */
+    private static final class Key
+    {
+        private final String originator_;
+        private final int ref_;
+        private final int total_;
+
+        Key(String originator, int ref, int total)
+        {
+            originator_ = originator;
+            ref_ = ref;
+            total_ = total;
+        }
+
+        public int hashCode()
+        {
+            int hash = (ref_ * 31) + total_;
+            if (originator_ != null)
+            {
+                hash = (hash * 31) + originator_.hashCode();
+            }
+            return hash;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+
+            Key other = (Key) obj;
+            return (ref_ == other.ref_) && (total_ == other.total_)
+                    && ((originator_ == null) ? (other.originator_ == null) : originator_.equals(other.originator_));
+        }
+    }
+
+    /**
+     * The parts of a concatenated message that have arrived.
+     */
+    private static final class Pending<T>
+    {
+        private final String originator_;
+        private final Object[] parts_;
+        private final long created_;
+        private int received_;
+        private int bytes_;
+
+        Pending(String originator, int total, long created)
+        {
+            originator_ = originator;
+            parts_ = new Object[total];
+            created_ = created;
+        }
+
+        boolean isComplete()
+        {
+            return (received_ == parts_.length);
+        }
+
+        @SuppressWarnings("unchecked")
+        List<T> getParts()
+        {
+            List<T> parts = new ArrayList<T>(received_);
+            for (int i = 0; i < parts_.length; i++)
+            {
+                if (parts_[i] != null)
+                {
+                    parts.add((T) parts_[i]);
+                }
+            }
+            return parts;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is "SMS Library for the Java platform".
+ *
+ * The Initial Developer of the Original Code is Markus Eriksson.
+ * Portions created by the Initial Developer are Copyright (C) 2002
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.marre.sms;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Default SmsConcatRefAllocator, a counter for each destination.
+ * <p>
+ * Destinations are hashed into a fixed number of counters, so consecutive
+ * messages to the same destination always get consecutive reference
+ * numbers. The counters are updated with atomic increments, threads that
+ * segment messages at the same time never wait for each other. The
+ * counters start at random values so a restarted application doesn't
+ * reuse the numbers of the previous run.
+ * <p>
+ * Only 8-bit reference numbers are used unless 16-bit ones are asked for,
+ * so the pdus stay the same as before the 16-bit concat element was
+ * supported.
+ */
+public class SmsConcatRefCounter implements SmsConcatRefAllocator
+{
+    /** Number of counters, must be a power of 2. */
+    private static final int N_COUNTERS = 64;
+
+    private final AtomicIntegerArray counters_ = new AtomicIntegerArray(N_COUNTERS);
+    private final boolean use16BitRefs_;
+
+    /**
+     * Creates a counter that only uses 8-bit reference numbers.
+     */
+    public SmsConcatRefCounter()
+    {
+        this(false);
+    }
+
+    /**
+     * Creates a counter.
+     *
+     * @param use16BitRefs true if 16-bit reference numbers may be used when
+     * they are free
+     */
+    public SmsConcatRefCounter(boolean use16BitRefs)
+    {
+        Random rnd = new Random();
+
+        for (int i = 0; i < N_COUNTERS; i++)
+        {
+            counters_.set(i, rnd.nextInt());
+        }
+
+        use16BitRefs_ = use16BitRefs;
+    }
+
+    public boolean supports16BitRefs()
+    {
+        return use16BitRefs_;
+    }
+
+    public int nextRef(SmsAddress destination, boolean wide)
+    {
+        int hash;
+
+        if (destination != null)
+        {
+            hash = destination.getAddress().hashCode();
+        }
+        else
+        {
+            // Unknown destination, spread the threads over the counters
+            hash = (int) Thread.currentThread().getId();
+        }
+        hash ^= (hash >>> 16);
+
+        int ref = counters_.incrementAndGet(hash & (N_COUNTERS - 1));
+
+        return wide ? (ref & 0xffff) : (ref & 0xff);
+    }
+}
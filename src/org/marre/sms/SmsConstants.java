@@ -165,6 +165,21 @@ public final class SmsConstants
     public static final byte UDH_IEI_RFC822_EMAIL_HEADER = 0x20;
     /** Hyperlink format element. */
     public static final byte UDH_IEI_HYPERLINK_FORMAT = 0x21;
+    /** National Language Single Shift. */
+    public static final byte UDH_IEI_NATIONAL_SINGLE_SHIFT = 0x24;
+    /** National Language Locking Shift. */
+    public static final byte UDH_IEI_NATIONAL_LOCKING_SHIFT = 0x25;
+
+    /* NATIONAL LANGUAGE IDENTIFIERS FOR UDH_IEI_NATIONAL_*_SHIFT (3GPP TS 23.038 6.2.1.2.4) */
+
+    /** No national language, the GSM default alphabet and extension table are used. */
+    public static final int NATIONAL_LANGUAGE_NONE = 0;
+    /** Turkish single shift and locking shift tables. */
+    public static final int NATIONAL_LANGUAGE_TURKISH = 1;
+    /** Spanish single shift table. */
+    public static final int NATIONAL_LANGUAGE_SPANISH = 2;
+    /** Portuguese single shift and locking shift tables. */
+    public static final int NATIONAL_LANGUAGE_PORTUGUESE = 3;
 
     /* MESSAGE INDICATION TYPES FOR UDH_IEI_SPECIAL_MESSAGE */
 
@@ -36,6 +36,10 @@ package org.marre.sms;
 
 /**
  * Represents a SMS DCS (Data Coding Scheme).
+ * <p>
+ * Instances are immutable. The alphabet, group and message class are
+ * decoded once when the instance is created. Use valueOf() to get the
+ * shared instance of a dcs instead of creating a new one.
  *
  * @version $Id: SmsDcs.java 410 2006-03-13 19:48:31Z c95men $
  * @author Markus Eriksson
@@ -89,19 +93,50 @@ public class SmsDcs
     /** Message waiting indication type - other. Should not be used. */
     public static final int DCS_MSG_WAITING_OTHER = 3;
           
+    /** Shared instances of all 256 dcs values. */
+    private static final SmsDcs[] DCS_TABLE = new SmsDcs[256];
+
+    static
+    {
+        for (int i = 0; i < DCS_TABLE.length; i++)
+        {
+            DCS_TABLE[i] = new SmsDcs((byte) i);
+        }
+    }
+
     /** The encoded dcs. */
-    protected byte dcs_;
-    
+    protected final byte dcs_;
+
+    private final int group_;
+    private final int alphabet_;
+    private final int messageClass_;
+
     /**
      * Creates a specific DCS.
+     * <p>
+     * valueOf() returns a shared instance instead.
      * 
      * @param dcs The dcs.
      */
     public SmsDcs(byte dcs)
     {
         dcs_ = dcs;
+        group_ = decodeGroup(dcs);
+        alphabet_ = decodeAlphabet(dcs, group_);
+        messageClass_ = decodeMessageClass(dcs, group_);
     }
-    
+
+    /**
+     * Returns the shared instance of a dcs.
+     * 
+     * @param dcs The dcs.
+     * @return The SmsDcs
+     */
+    public static SmsDcs valueOf(byte dcs)
+    {
+        return DCS_TABLE[dcs & 0xff];
+    }
+
     /**
      * Returns the encoded dcs.
      * 
@@ -154,7 +189,7 @@ public class SmsDcs
             throw new IllegalArgumentException("Invalid message class");
         }
                 
-        return new SmsDcs(dcs);
+        return valueOf(dcs);
     }
     
     /**
@@ -173,16 +208,60 @@ public class SmsDcs
      */
     public int getAlphabet()
     {
-        switch (getGroup())
+        return alphabet_;
+    }
+
+    /**
+     * What group (type of message) is the given dcs.
+     * 
+     * @return Any of the GROUP_ constants.
+     */
+    public int getGroup()
+    {
+        return group_;
+    }
+
+    /**
+     * Get the message class.
+     *
+     * <pre>
+     * Return value can be one of:
+     * - MSG_CLASS_UNKNOWN
+     * - MSG_CLASS_0
+     * - MSG_CLASS_1
+     * - MSG_CLASS_2
+     * - MSG_CLASS_3
+     * </pre>
+     *
+     * @return Returns the message class.
+     */
+    public int getMessageClass()
+    {
+        return messageClass_;
+    }
+
+    public boolean equals(Object obj)
+    {
+        return (obj instanceof SmsDcs) && (((SmsDcs) obj).dcs_ == dcs_);
+    }
+
+    public int hashCode()
+    {
+        return dcs_ & 0xff;
+    }
+
+    private static int decodeAlphabet(byte dcs, int group)
+    {
+        switch (group)
         {
         case GROUP_GENERAL_DATA_CODING:
             // General Data Coding Indication
-            if (dcs_ == 0x00)
+            if (dcs == 0x00)
             {
                 return ALPHABET_GSM;
             }
             
-            switch (dcs_ & 0x0C)
+            switch (dcs & 0x0C)
             {
             case 0x00: return ALPHABET_GSM;
             case 0x04: return ALPHABET_8BIT;
@@ -198,7 +277,7 @@ public class SmsDcs
             return ALPHABET_UCS2;
 
         case GROUP_DATA_CODING_MESSAGE:
-            switch (dcs_ & 0x04)
+            switch (dcs & 0x04)
             {
             case 0x00: return ALPHABET_GSM;
             case 0x04: return ALPHABET_8BIT;
@@ -210,20 +289,14 @@ public class SmsDcs
         }                
     }
     
-    /**
-     * What group (type of message) is the given dcs.
-     * 
-     * @param theDcs the dcs to test
-     * @return Any of the GROUP_ constants.
-     */
-    public int getGroup()
+    private static int decodeGroup(byte dcs)
     {
-        if ((dcs_ & 0xC0) == 0x00) 
+        if ((dcs & 0xC0) == 0x00) 
         {
             return GROUP_GENERAL_DATA_CODING;
         }
         
-        switch ((dcs_ & 0xF0))
+        switch ((dcs & 0xF0))
         {
         case 0xC0: return GROUP_MESSAGE_WAITING_DISCARD;
         case 0xD0: return GROUP_MESSAGE_WAITING_STORE_GSM;
@@ -233,32 +306,18 @@ public class SmsDcs
         }
     }
     
-    /**
-     * Get the message class.
-     *
-     * <pre>
-     * Return value can be one of:
-     * - MSG_CLASS_UNKNOWN
-     * - MSG_CLASS_0
-     * - MSG_CLASS_1
-     * - MSG_CLASS_2
-     * - MSG_CLASS_3
-     * </pre>
-     *
-     * @return Returns the message class.
-     */
-    public int getMessageClass()
+    private static int decodeMessageClass(byte dcs, int group)
     {
-        switch (getGroup())
+        switch (group)
         {
         case GROUP_GENERAL_DATA_CODING:
             // General Data Coding Indication
-            if (dcs_ == 0x00)
+            if (dcs == 0x00)
             {
                 return MSG_CLASS_UNKNOWN;
             }
             
-            switch (dcs_ & 0x13)
+            switch (dcs & 0x13)
             {
             case 0x10: return MSG_CLASS_0;
             case 0x11: return MSG_CLASS_1;
@@ -269,7 +328,7 @@ public class SmsDcs
             
         case GROUP_DATA_CODING_MESSAGE:
             // Data coding/message class
-            switch (dcs_ & 0x03)
+            switch (dcs & 0x03)
             {
             case 0x00: return MSG_CLASS_0;
             case 0x01: return MSG_CLASS_1;
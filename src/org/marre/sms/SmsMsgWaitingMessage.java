@@ -110,6 +110,9 @@ public class SmsMsgWaitingMessage extends SmsTextMessage
      * List of MsgWaiting "objects".
      */
     protected LinkedList messages_ = new LinkedList();
+
+    /** The message waiting UDH elements, null until needed. */
+    private SmsUdhElement[] msgWaitingUdh_;
     
     /**
      * Creates an empty message.
@@ -181,6 +184,7 @@ public class SmsMsgWaitingMessage extends SmsTextMessage
         }
         
         messages_.add(new MsgWaiting(type, count, options));
+        msgWaitingUdh_ = null;
     }
 
     /**
@@ -255,12 +259,12 @@ public class SmsMsgWaitingMessage extends SmsTextMessage
      */
     public SmsUdhElement[] getUdhElements()
     {
-        SmsUdhElement udhElements[] = null;
         int msgCount = messages_.size();
         
-        if (msgCount > 0)
+        if ((msgWaitingUdh_ == null) && (msgCount > 0))
         {
-            udhElements = new SmsUdhElement[messages_.size()];
+            // Built once, the elements are the same for every pdu
+            SmsUdhElement udhElements[] = new SmsUdhElement[msgCount];
             int i = 0;
             
             for(Iterator j = messages_.iterator(); j.hasNext(); i++)
@@ -269,8 +273,9 @@ public class SmsMsgWaitingMessage extends SmsTextMessage
                 udhElements[i] = getMessageWaitingUdh(msgWaiting);
             }
             
+            msgWaitingUdh_ = udhElements;
         }
         
-        return udhElements;
+        return SmsUdhUtil.merge(msgWaitingUdh_, super.getUdhElements());
     }
 }
@@ -34,8 +34,6 @@
  * ***** END LICENSE BLOCK ***** */
 package org.marre.sms;
 
-import java.io.*;
-
 /**
  * Represents an SMS pdu
  * <p>
@@ -51,6 +49,9 @@ public class SmsPdu
     protected SmsUdhElement[] udhElements_;
     protected SmsUserData ud_;
 
+    /** The serialized UDH including UDHL, created when it is first needed. */
+    private byte[] udh_;
+
     /**
      * Creates an empty SMS pdu object
      */
@@ -108,10 +109,44 @@ public class SmsPdu
         {
             udhElements_ = null;
         }
+
+        udh_ = null;
+    }
+
+    /**
+     * Sets the UDH field without copying the array.
+     * <p>
+     * Used when a pdu is reused for many segments, see
+     * SmsPduIterator.next(SmsPdu).
+     * 
+     * @param udhElements
+     *            The UDH elements
+     */
+    void setSharedUserDataHeaders(SmsUdhElement[] udhElements)
+    {
+        udhElements_ = udhElements;
+        udh_ = null;
+    }
+
+    /**
+     * Sets the UDH field and its serialized form without copying.
+     * 
+     * @param udhElements
+     *            The UDH elements
+     * @param udh
+     *            The UDH elements as returned by getUserDataHeaders()
+     */
+    void setSharedUserDataHeaders(SmsUdhElement[] udhElements, byte[] udh)
+    {
+        udhElements_ = udhElements;
+        udh_ = udh;
     }
 
     /**
      * Returns the user data headers
+     * <p>
+     * The UDH is serialized the first time this method is called, later
+     * calls return the same array. It must not be modified.
      * 
      * @return A byte array representing the UDH fields or null if there aren't
      *         any UDH
@@ -123,24 +158,12 @@ public class SmsPdu
             return null;
         }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(100);
-
-        baos.write((byte) SmsUdhUtil.getTotalSize(udhElements_));
-
-        try
-        {
-            for (int i = 0; i < udhElements_.length; i++)
-            {
-                udhElements_[i].writeTo(baos);
-            }
-        }
-        catch (IOException ioe)
+        if (udh_ == null)
         {
-            // Shouldn't happen.
-            throw new RuntimeException("Failed to write to ByteArrayOutputStream");
+            udh_ = SmsUdhUtil.toByteArray(udhElements_);
         }
 
-        return baos.toByteArray();
+        return udh_;
     }
 
     /**
@@ -0,0 +1,366 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is "SMS Library for the Java platform".
+ *
+ * The Initial Developer of the Original Code is Markus Eriksson.
+ * Portions created by the Initial Developer are Copyright (C) 2002
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.marre.sms;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits the user data of a message into SmsPdu:s, one at a time.
+ * <p>
+ * The number of pdus is known when the iterator is created, see
+ * getPduCount(). If the message is too long to fit in one SmsPdu it is
+ * divided with a concat pdu UDH element, GSM encoded messages are cut on
+ * septet boundaries and escape sequences are never split. UCS2 messages
+ * are cut between whole chars and surrogate pairs are never split. A 16-bit
+ * reference number is used if the allocator supports it and the message
+ * doesn't need more segments because of it.
+ * <p>
+ * next() returns a new SmsPdu for every segment. next(SmsPdu) instead
+ * fills in the given pdu and shares the user data buffer and UDH array
+ * with the iterator, the content is only valid until the next call.
+ */
+public final class SmsPduIterator implements Iterator<SmsPdu>
+{
+    private final SmsUdhElement[] udhElements_;
+    private final SmsUserData ud_;
+    private final boolean septets_;
+    private final boolean ucs2_;
+    private final boolean concat_;
+    private final int nPdus_;
+    private final int refNr_;
+    private final boolean wideRef_;
+
+    /** Max number of septets or octets in each concatenated pdu. */
+    private int maxConcatLength_;
+
+    /** UDH elements of the concatenated pdus, position 0 is the concat element. */
+    private SmsUdhElement[] pduUdhElements_;
+
+    /** Shared user data for next(SmsPdu). */
+    private SmsUserData sharedUd_;
+
+    /** UDH elements for next(SmsPdu), the concat element is patched for each pdu. */
+    private SmsUdhElement[] sharedUdhElements_;
+    /** Data of the concat element in sharedUdhElements_. */
+    private byte[] sharedConcatData_;
+    /** sharedUdhElements_ serialized, patched the same way. */
+    private byte[] sharedUdh_;
+
+    private int pduIndex_;
+    private int udOffset_;
+
+    /**
+     * Creates an iterator over the pdus of the given user data.
+     *
+     * @param udhElements UDH elements to add to each pdu, may be null
+     * @param ud The user data
+     * @param refAllocator Gives the concat reference number
+     * @param destination The destination, may be null
+     */
+    SmsPduIterator(SmsUdhElement[] udhElements, SmsUserData ud,
+            SmsConcatRefAllocator refAllocator, SmsAddress destination)
+    {
+        int udhLength = SmsUdhUtil.getTotalSize(udhElements);
+        int maxLength;
+
+        udhElements_ = udhElements;
+        ud_ = ud;
+        septets_ = (ud.getDcs().getAlphabet() == SmsDcs.ALPHABET_GSM);
+        ucs2_ = (ud.getDcs().getAlphabet() == SmsDcs.ALPHABET_UCS2);
+
+        if (septets_)
+        {
+            maxLength = (SmsConcatMessage.getMaxUdOctets(udhLength) * 8) / 7;
+        }
+        else
+        {
+            maxLength = SmsConcatMessage.getMaxUdOctets(udhLength);
+        }
+
+        concat_ = (ud.getLength() > maxLength);
+
+        if (!concat_)
+        {
+            nPdus_ = 1;
+            refNr_ = 0;
+            wideRef_ = false;
+            return;
+        }
+
+        // Calculate number of SMS needed
+        int nPdus = countPdus(SmsConcatMessage.getMaxConcatUdOctets(udhLength));
+
+        // The 16-bit concat element is one octet larger
+        boolean wideRef = false;
+        if (refAllocator.supports16BitRefs())
+        {
+            int maxConcatLength = maxConcatLength_;
+            wideRef = (countPdus(SmsConcatMessage.getMaxConcatUdOctets(udhLength + 1)) == nPdus);
+            if (!wideRef)
+            {
+                maxConcatLength_ = maxConcatLength;
+            }
+        }
+
+        nPdus_ = nPdus;
+        wideRef_ = wideRef;
+        refNr_ = refAllocator.nextRef(destination, wideRef);
+
+        // Leave position pduUdhElements[0] for the concat UDHI
+        if (udhElements == null)
+        {
+            pduUdhElements_ = new SmsUdhElement[1];
+        }
+        else
+        {
+            pduUdhElements_ = new SmsUdhElement[udhElements.length + 1];
+            System.arraycopy(udhElements, 0, pduUdhElements_, 1, udhElements.length);
+        }
+    }
+
+    /**
+     * Counts the pdus needed with the given space for user data in each pdu.
+     */
+    private int countPdus(int maxConcatBytes)
+    {
+        if (septets_)
+        {
+            maxConcatLength_ = (maxConcatBytes * 8) / 7;
+        }
+        else if (ucs2_)
+        {
+            // Only whole UCS2 chars in each pdu
+            maxConcatLength_ = (maxConcatBytes / 2) * 2;
+        }
+        else
+        {
+            maxConcatLength_ = maxConcatBytes;
+        }
+
+        int length = ud_.getLength();
+        int nPdus = 0;
+        for (int offset = 0; offset < length; nPdus++)
+        {
+            offset = getPduEnd(offset);
+        }
+
+        return nPdus;
+    }
+
+    /**
+     * Returns the total number of pdus, including the ones that already
+     * have been returned.
+     *
+     * @return Number of pdus
+     */
+    public int getPduCount()
+    {
+        return nPdus_;
+    }
+
+    public boolean hasNext()
+    {
+        return (pduIndex_ < nPdus_);
+    }
+
+    /**
+     * Returns the next pdu as a new SmsPdu.
+     *
+     * @return The pdu
+     */
+    public SmsPdu next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+
+        if (!concat_)
+        {
+            pduIndex_++;
+            return new SmsPdu(udhElements_, ud_);
+        }
+
+        int end = getPduEnd(udOffset_);
+        int length = end - udOffset_;
+        byte[] pduUd = new byte[septets_ ? SmsPduUtil.getSeptetOctets(length) : length];
+
+        copySegment(pduUd, length);
+        pduUdhElements_[0] = getConcatUdh();
+
+        pduIndex_++;
+        udOffset_ = end;
+
+        return new SmsPdu(pduUdhElements_, pduUd, length, ud_.getDcs());
+    }
+
+    /**
+     * Fills in the given pdu with the next segment.
+     * <p>
+     * The pdu shares its user data and UDH elements with this iterator, they
+     * are overwritten by the next call. The UDH is only serialized once, the
+     * concat sequence number is patched in place for each pdu.
+     *
+     * @param reuse The pdu to fill in
+     * @return reuse
+     */
+    public SmsPdu next(SmsPdu reuse)
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+
+        if (!concat_)
+        {
+            pduIndex_++;
+            reuse.setSharedUserDataHeaders(udhElements_);
+            reuse.setUserData(ud_);
+            return reuse;
+        }
+
+        if (sharedUd_ == null)
+        {
+            sharedUd_ = new SmsUserData(new byte[SmsConcatMessage.MAX_UD_OCTETS], 0, ud_.getDcs());
+
+            // The UDH is built once, only the sequence number changes
+            sharedUdhElements_ = new SmsUdhElement[pduUdhElements_.length];
+            System.arraycopy(pduUdhElements_, 1, sharedUdhElements_, 1, pduUdhElements_.length - 1);
+            sharedUdhElements_[0] = getConcatUdh();
+            sharedConcatData_ = sharedUdhElements_[0].getUdhIeiData();
+            sharedUdh_ = SmsUdhUtil.toByteArray(sharedUdhElements_);
+        }
+
+        int end = getPduEnd(udOffset_);
+        int length = end - udOffset_;
+
+        copySegment(sharedUd_.getData(), length);
+        sharedUd_.setLength(length);
+
+        // The sequence number is the last octet of the first element
+        int seqPos = sharedConcatData_.length - 1;
+        sharedConcatData_[seqPos] = (byte) (pduIndex_ + 1);
+        sharedUdh_[1 + 2 + seqPos] = (byte) (pduIndex_ + 1);
+
+        pduIndex_++;
+        udOffset_ = end;
+
+        reuse.setSharedUserDataHeaders(sharedUdhElements_, sharedUdh_);
+        reuse.setUserData(sharedUd_);
+        return reuse;
+    }
+
+    private SmsUdhElement getConcatUdh()
+    {
+        if (wideRef_)
+        {
+            return SmsUdhUtil.get16BitConcatUdh(refNr_, nPdus_, pduIndex_ + 1);
+        }
+
+        return SmsUdhUtil.get8BitConcatUdh(refNr_, nPdus_, pduIndex_ + 1);
+    }
+
+    /**
+     * Not supported.
+     */
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Copies the current segment to the start of dest.
+     */
+    private void copySegment(byte[] dest, int length)
+    {
+        if (septets_)
+        {
+            // copyBits leaves the unused bits of the last octet as they are
+            if (length > 0)
+            {
+                dest[SmsPduUtil.getSeptetOctets(length) - 1] = 0;
+            }
+            SmsPduUtil.copyBits(ud_.getData(), udOffset_ * 7, dest, 0, length * 7);
+        }
+        else
+        {
+            System.arraycopy(ud_.getData(), udOffset_, dest, 0, length);
+        }
+    }
+
+    /**
+     * Finds where a pdu that starts at the given septet or octet must end.
+     * <p>
+     * Escape sequences and UCS2 surrogate pairs are never split between two
+     * pdus.
+     *
+     * @param start Index of the first septet or octet in the pdu
+     * @return Index of the septet or octet after the last one in the pdu
+     */
+    private int getPduEnd(int start)
+    {
+        int length = ud_.getLength();
+        int limit = Math.min(start + maxConcatLength_, length);
+
+        byte[] data = ud_.getData();
+
+        if (!septets_)
+        {
+            // Move a high surrogate to the next pdu if its pair is there
+            if (ucs2_ && (limit < length) && (limit - 2 > start)
+                    && ((data[limit - 2] & 0xfc) == 0xd8) && ((data[limit] & 0xfc) == 0xdc))
+            {
+                limit -= 2;
+            }
+            return limit;
+        }
+
+        int end = start;
+
+        while (end < limit)
+        {
+            boolean escape = (SmsPduUtil.getSeptet(data, end) == SmsPduUtil.EXT_TABLE_PREFIX);
+            int width = (escape && (end + 1 < length)) ? 2 : 1;
+            if (end + width > limit)
+            {
+                break;
+            }
+            end += width;
+        }
+
+        return end;
+    }
+}
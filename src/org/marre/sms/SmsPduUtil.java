@@ -46,6 +46,9 @@ public final class SmsPduUtil
 {
     public static final char EXT_TABLE_PREFIX = 0x1B;
 
+    /** Written by writeUcs2() in place of an unpaired surrogate. */
+    private static final char UCS2_REPLACEMENT_CHAR = 0xFFFD;
+
     /**
      * Default alphabet table according to GSM 03.38.
      * 
@@ -129,6 +132,264 @@ public final class SmsPduUtil
             // GREEK CAPITAL LETTER ZETA
             0x0396, 0x5a};
 
+    /**
+     * Extension table according to GSM 03.38.
+     * <p>
+     * The chars are encoded as EXT_TABLE_PREFIX followed by the gsm value. The
+     * table is encoded as pairs with unicode value and gsm value, like
+     * GSM_DEFAULT_ALPHABET_ALTERNATIVES.
+     * 
+     * See http://www.unicode.org/Public/MAPPINGS/ETSI/GSM0338.TXT
+     */
+    public static final char[] GSM_EXTENSION_ALPHABET_TABLE = {
+            // FORM FEED
+            0x000c, 0x0a,
+            // CIRCUMFLEX ACCENT
+            '^', 0x14,
+            // LEFT CURLY BRACKET
+            '{', 0x28,
+            // RIGHT CURLY BRACKET
+            '}', 0x29,
+            // REVERSE SOLIDUS
+            '\\', 0x2f,
+            // LEFT SQUARE BRACKET
+            '[', 0x3c,
+            // TILDE
+            '~', 0x3d,
+            // RIGHT SQUARE BRACKET
+            ']', 0x3e,
+            // VERTICAL LINE
+            '|', 0x40,
+            // EURO SIGN
+            0x20ac, 0x65};
+
+    /**
+     * Turkish locking shift table according to 3GPP TS 23.038 A.3.1.
+     */
+    public static final char[] GSM_TURKISH_LOCKING_SHIFT_TABLE = {
+            //   0 '@', 'pound sign', '$', 'yen sign', 'euro sign', 'e acute', 'u grave', 'dotless i',
+            '@', 163, '$', 165, 0x20ac, 233, 249, 0x131,
+            //   8 'o grave', 'C cedilla', LF, 'G breve', 'g breve', CR, 'A ring above', 'a ring above',
+            242, 199, 10, 0x11e, 0x11f, 13, 197, 229,
+            //  16 'delta', '_', 'phi', 'gamma', 'lamda', 'omega', 'pi', 'psi',
+            0x394, '_', 0x3a6, 0x393, 0x39b, 0x3a9, 0x3a0, 0x3a8,
+            //  24 'sigma', 'theta', 'xi', 'EXT', 'S cedilla', 's cedilla', 'sharp s', 'E acute',
+            0x3a3, 0x398, 0x39e, 0xa0, 0x15e, 0x15f, 223, 201,
+            //  32 ' ', '!', '"', '#', 'currency sign', '%', '&', '\'',
+            ' ', '!', '"', '#', 164, '%', '&', '\'',
+            //  40 '(', ')', '*', '+', ',', '-', '.', '/',
+            '(', ')', '*', '+', ',', '-', '.', '/',
+            //  48 '0', '1', '2', '3', '4', '5', '6', '7',
+            '0', '1', '2', '3', '4', '5', '6', '7',
+            //  56 '8', '9', ':', ';', '<', '=', '>', '?',
+            '8', '9', ':', ';', '<', '=', '>', '?',
+            //  64 'I dot above', 'A', 'B', 'C', 'D', 'E', 'F', 'G',
+            0x130, 'A', 'B', 'C', 'D', 'E', 'F', 'G',
+            //  72 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O',
+            'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O',
+            //  80 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W',
+            'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W',
+            //  88 'X', 'Y', 'Z', 'A diaeresis', 'O diaeresis', 'N tilde', 'U diaeresis', 'section sign',
+            'X', 'Y', 'Z', 196, 214, 209, 220, 167,
+            //  96 'c cedilla', 'a', 'b', 'c', 'd', 'e', 'f', 'g',
+            231, 'a', 'b', 'c', 'd', 'e', 'f', 'g',
+            // 104 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o',
+            'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o',
+            // 112 'p', 'q', 'r', 's', 't', 'u', 'v', 'w',
+            'p', 'q', 'r', 's', 't', 'u', 'v', 'w',
+            // 120 'x', 'y', 'z', 'a diaeresis', 'o diaeresis', 'n tilde', 'u diaeresis', 'a grave',
+            'x', 'y', 'z', 228, 246, 241, 252, 224};
+
+    /**
+     * Portuguese locking shift table according to 3GPP TS 23.038 A.3.3.
+     */
+    public static final char[] GSM_PORTUGUESE_LOCKING_SHIFT_TABLE = {
+            //   0 '@', 'pound sign', '$', 'yen sign', 'e circumflex', 'e acute', 'u acute', 'i acute',
+            '@', 163, '$', 165, 234, 233, 250, 237,
+            //   8 'o acute', 'c cedilla', LF, 'O circumflex', 'o circumflex', CR, 'A acute', 'a acute',
+            243, 231, 10, 212, 244, 13, 193, 225,
+            //  16 'delta', '_', 'feminine ordinal indicator', 'C cedilla', 'A grave', 'infinity', '^', '\\',
+            0x394, '_', 170, 199, 192, 0x221e, '^', '\\',
+            //  24 'euro sign', 'O acute', '|', 'EXT', 'A circumflex', 'a circumflex', 'E circumflex', 'E acute',
+            0x20ac, 211, '|', 0xa0, 194, 226, 202, 201,
+            //  32 ' ', '!', '"', '#', 'masculine ordinal indicator', '%', '&', '\'',
+            ' ', '!', '"', '#', 186, '%', '&', '\'',
+            //  40 '(', ')', '*', '+', ',', '-', '.', '/',
+            '(', ')', '*', '+', ',', '-', '.', '/',
+            //  48 '0', '1', '2', '3', '4', '5', '6', '7',
+            '0', '1', '2', '3', '4', '5', '6', '7',
+            //  56 '8', '9', ':', ';', '<', '=', '>', '?',
+            '8', '9', ':', ';', '<', '=', '>', '?',
+            //  64 'I acute', 'A', 'B', 'C', 'D', 'E', 'F', 'G',
+            205, 'A', 'B', 'C', 'D', 'E', 'F', 'G',
+            //  72 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O',
+            'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O',
+            //  80 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W',
+            'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W',
+            //  88 'X', 'Y', 'Z', 'A tilde', 'O tilde', 'U acute', 'U diaeresis', 'section sign',
+            'X', 'Y', 'Z', 195, 213, 218, 220, 167,
+            //  96 '~', 'a', 'b', 'c', 'd', 'e', 'f', 'g',
+            '~', 'a', 'b', 'c', 'd', 'e', 'f', 'g',
+            // 104 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o',
+            'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o',
+            // 112 'p', 'q', 'r', 's', 't', 'u', 'v', 'w',
+            'p', 'q', 'r', 's', 't', 'u', 'v', 'w',
+            // 120 'x', 'y', 'z', 'a tilde', 'o tilde', '`', 'u diaeresis', 'a grave',
+            'x', 'y', 'z', 227, 245, '`', 252, 224};
+
+    /**
+     * Turkish single shift table according to 3GPP TS 23.038 A.2.1.
+     * <p>
+     * Encoded as pairs like GSM_EXTENSION_ALPHABET_TABLE, which it extends.
+     */
+    public static final char[] GSM_TURKISH_SINGLE_SHIFT_TABLE = {
+            0x000c, 0x0a, '^', 0x14, '{', 0x28, '}', 0x29, '\\', 0x2f,
+            '[', 0x3c, '~', 0x3d, ']', 0x3e, '|', 0x40, 0x20ac, 0x65,
+            // G WITH BREVE, I WITH DOT ABOVE, S WITH CEDILLA
+            0x011e, 0x47, 0x0130, 0x49, 0x015e, 0x53,
+            // c with cedilla, g with breve, dotless i, s with cedilla
+            0x00e7, 0x63, 0x011f, 0x67, 0x0131, 0x69, 0x015f, 0x73};
+
+    /**
+     * Spanish single shift table according to 3GPP TS 23.038 A.2.2.
+     * <p>
+     * Encoded as pairs like GSM_EXTENSION_ALPHABET_TABLE, which it extends.
+     */
+    public static final char[] GSM_SPANISH_SINGLE_SHIFT_TABLE = {
+            0x000c, 0x0a, '^', 0x14, '{', 0x28, '}', 0x29, '\\', 0x2f,
+            '[', 0x3c, '~', 0x3d, ']', 0x3e, '|', 0x40, 0x20ac, 0x65,
+            // c with cedilla
+            0x00e7, 0x09,
+            // A, I, O, U WITH ACUTE
+            0x00c1, 0x41, 0x00cd, 0x49, 0x00d3, 0x4f, 0x00da, 0x55,
+            // a, i, o, u with acute
+            0x00e1, 0x61, 0x00ed, 0x69, 0x00f3, 0x6f, 0x00fa, 0x75};
+
+    /**
+     * Portuguese single shift table according to 3GPP TS 23.038 A.2.3.
+     * <p>
+     * Encoded as pairs like GSM_EXTENSION_ALPHABET_TABLE, which it extends.
+     */
+    public static final char[] GSM_PORTUGUESE_SINGLE_SHIFT_TABLE = {
+            0x000c, 0x0a, '^', 0x14, '{', 0x28, '}', 0x29, '\\', 0x2f,
+            '[', 0x3c, '~', 0x3d, ']', 0x3e, '|', 0x40, 0x20ac, 0x65,
+            // e with circumflex, c with cedilla, O WITH CIRCUMFLEX, o with circumflex
+            0x00ea, 0x05, 0x00e7, 0x09, 0x00d4, 0x0b, 0x00f4, 0x0c,
+            // A WITH ACUTE, a with acute
+            0x00c1, 0x0e, 0x00e1, 0x0f,
+            // PHI, GAMMA, OMEGA, PI, PSI, SIGMA, THETA
+            0x03a6, 0x12, 0x0393, 0x13, 0x03a9, 0x15, 0x03a0, 0x16,
+            0x03a8, 0x17, 0x03a3, 0x18, 0x0398, 0x19,
+            // E WITH CIRCUMFLEX, A WITH GRAVE, I, O, U WITH ACUTE
+            0x00ca, 0x1f, 0x00c0, 0x41, 0x00cd, 0x49, 0x00d3, 0x4f, 0x00da, 0x55,
+            // A, O WITH TILDE, A WITH CIRCUMFLEX
+            0x00c3, 0x5b, 0x00d5, 0x5c, 0x00c2, 0x61,
+            // i, o, u with acute, a, o with tilde, a with circumflex
+            0x00ed, 0x69, 0x00f3, 0x6f, 0x00fa, 0x75, 0x00e3, 0x7b, 0x00f5, 0x7c, 0x00e2, 0x7f};
+
+    /**
+     * Locking shift tables indexed by national language identifier, null
+     * if the language only has a single shift table.
+     */
+    private static final char[][] GSM_LOCKING_SHIFT_TABLES = {
+            GSM_DEFAULT_ALPHABET_TABLE,
+            GSM_TURKISH_LOCKING_SHIFT_TABLE,
+            null,
+            GSM_PORTUGUESE_LOCKING_SHIFT_TABLE};
+
+    /**
+     * Single shift tables indexed by national language identifier.
+     */
+    private static final char[][] GSM_SINGLE_SHIFT_TABLES = {
+            GSM_EXTENSION_ALPHABET_TABLE,
+            GSM_TURKISH_SINGLE_SHIFT_TABLE,
+            GSM_SPANISH_SINGLE_SHIFT_TABLE,
+            GSM_PORTUGUESE_SINGLE_SHIFT_TABLE};
+
+    /** Number of national language identifiers that have tables. */
+    private static final int N_NATIONAL_LANGUAGES = GSM_SINGLE_SHIFT_TABLES.length;
+
+    /**
+     * Reverse lookups indexed by (lockingShift * N_NATIONAL_LANGUAGES +
+     * singleShift), null if the combination isn't supported.
+     */
+    private static final GsmAlphabetLookup[] GSM_NATIONAL_LOOKUPS =
+        new GsmAlphabetLookup[N_NATIONAL_LANGUAGES * N_NATIONAL_LANGUAGES];
+
+    /**
+     * Single shift tables indexed by national language identifier and gsm
+     * value, 0 if undefined.
+     */
+    private static final char[][] GSM_SINGLE_SHIFT_DECODE = new char[N_NATIONAL_LANGUAGES][128];
+
+    /**
+     * Reverse lookup for GSM_DEFAULT_ALPHABET_TABLE,
+     * GSM_DEFAULT_ALPHABET_ALTERNATIVES and GSM_EXTENSION_ALPHABET_TABLE.
+     */
+    private static final GsmAlphabetLookup GSM_DEFAULT_ALPHABET_LOOKUP;
+
+    /**
+     * GSM_EXTENSION_ALPHABET_TABLE indexed by gsm value, 0 if undefined.
+     */
+    private static final char[] GSM_EXTENSION_ALPHABET_DECODE =
+        GSM_SINGLE_SHIFT_DECODE[SmsConstants.NATIONAL_LANGUAGE_NONE];
+
+    static
+    {
+        for (int locking = 0; locking < N_NATIONAL_LANGUAGES; locking++)
+        {
+            if (GSM_LOCKING_SHIFT_TABLES[locking] == null)
+            {
+                continue;
+            }
+
+            for (int single = 0; single < N_NATIONAL_LANGUAGES; single++)
+            {
+                GsmAlphabetLookup lookup = new GsmAlphabetLookup();
+                lookup.addTable(GSM_LOCKING_SHIFT_TABLES[locking]);
+                if (locking == SmsConstants.NATIONAL_LANGUAGE_NONE)
+                {
+                    lookup.addPairs(GSM_DEFAULT_ALPHABET_ALTERNATIVES);
+                }
+                lookup.addPairs(GSM_SINGLE_SHIFT_TABLES[single], GsmAlphabetLookup.EXTENSION);
+
+                GSM_NATIONAL_LOOKUPS[locking * N_NATIONAL_LANGUAGES + single] = lookup;
+            }
+        }
+        GSM_DEFAULT_ALPHABET_LOOKUP = GSM_NATIONAL_LOOKUPS[0];
+
+        for (int language = 0; language < N_NATIONAL_LANGUAGES; language++)
+        {
+            char[] pairs = GSM_SINGLE_SHIFT_TABLES[language];
+            for (int i = 0; i < pairs.length; i += 2)
+            {
+                GSM_SINGLE_SHIFT_DECODE[language][pairs[i + 1]] = pairs[i];
+            }
+        }
+    }
+
+    /**
+     * BCD digits indexed by nibble value, 0 for the filler.
+     */
+    private static final char[] BCD_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '*', '#', 'a', 'b', 'c', 0};
+
+    /**
+     * Nibble values of the BCD digits indexed by char.
+     */
+    private static final byte[] BCD_VALUES = new byte[128];
+
+    static
+    {
+        for (int i = 0; i < BCD_DIGITS.length; i++)
+        {
+            if (BCD_DIGITS[i] != 0)
+            {
+                BCD_VALUES[BCD_DIGITS[i]] = (byte) i;
+            }
+        }
+    }
+
     /**
      * This class isn't intended to be instantiated
      */
@@ -142,20 +403,31 @@ public final class SmsPduUtil
      */
     public static byte[] getSeptets(String msg)
     {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(140);
+        return getSeptets(msg, SmsConstants.NATIONAL_LANGUAGE_NONE, SmsConstants.NATIONAL_LANGUAGE_NONE);
+    }
 
-        try
-        {
-            writeSeptets(baos, msg);
-            baos.close();
-        }
-        catch (IOException ex)
-        {
-            // Should not happen...
-            throw new RuntimeException(ex);
-        }
+    /**
+     * Pack the given string into septets using national language tables.
+     * 
+     * @param msg
+     *            The message to encode
+     * @param lockingShift
+     *            National language of the locking shift table,
+     *            SmsConstants.NATIONAL_LANGUAGE_NONE for the default alphabet
+     * @param singleShift
+     *            National language of the single shift table,
+     *            SmsConstants.NATIONAL_LANGUAGE_NONE for the extension table
+     * @return The packed septets
+     */
+    public static byte[] getSeptets(String msg, int lockingShift, int singleShift)
+    {
+        byte[] septets = toGsmCharset(msg, lockingShift, singleShift);
+        int nSeptets = septets.length;
+        byte[] packed = new byte[getSeptetOctets(nSeptets)];
+
+        packSeptets(septets, 0, nSeptets, packed, 0);
 
-        return baos.toByteArray();
+        return packed;
     }
 
     /**
@@ -170,30 +442,7 @@ public final class SmsPduUtil
      */
     public static void writeSeptets(OutputStream os, String msg) throws IOException
     {
-        int data = 0;
-        int nBits = 0;
-
-        for (int i = 0; i < msg.length(); i++)
-        {
-            byte gsmChar = toGsmCharset(msg.charAt(i));
-
-            data |= (gsmChar << nBits);
-            nBits += 7;
-
-            while (nBits >= 8)
-            {
-                os.write((char) (data & 0xff));
-
-                data >>>= 8;
-                nBits -= 8;
-            } // while
-        } // for
-
-        // Write remaining byte
-        if (nBits > 0)
-        {
-            os.write(data);
-        }
+        os.write(getSeptets(msg));
     }
 
     /**
@@ -202,25 +451,40 @@ public final class SmsPduUtil
      * @param data
      *            The byte array to read from
      * @param length
-     *            Number of decoded chars to read from the stream
-     * @return The decoded string
+     *            Number of septets to read from the stream. Escape sequences
+     *            are decoded into one char, so the string may be shorter.
+     * @return The decoded string or null if data is too short
      */
     public static String readSeptets(byte[] data, int length)
     {
-        if (data == null)
-        {
-            return null;
-        }
+        return readSeptets(data, length, SmsConstants.NATIONAL_LANGUAGE_NONE, SmsConstants.NATIONAL_LANGUAGE_NONE);
+    }
 
-        try
-        {
-            return readSeptets(new ByteArrayInputStream(data), length);
-        }
-        catch (IOException ex)
+    /**
+     * Decodes a 7-bit encoded string from the given byte array using
+     * national language tables
+     * 
+     * @param data
+     *            The byte array to read from
+     * @param length
+     *            Number of septets to read from the stream
+     * @param lockingShift
+     *            National language of the locking shift table
+     * @param singleShift
+     *            National language of the single shift table
+     * @return The decoded string or null if data is too short
+     */
+    public static String readSeptets(byte[] data, int length, int lockingShift, int singleShift)
+    {
+        if ((data == null) || (data.length < getSeptetOctets(length)))
         {
-            // Shouldn't happen since we are reading from a bytearray...
             return null;
         }
+
+        byte[] septets = new byte[length];
+        unpackSeptets(data, 0, septets, 0, length);
+
+        return fromGsmCharset(septets, 0, length, lockingShift, singleShift);
     }
     
     /**
@@ -229,40 +493,539 @@ public final class SmsPduUtil
      * @param is
      *            The stream to read from
      * @param length
-     *            Number of decoded chars to read from the stream
+     *            Number of septets to read from the stream
      * @return The decoded string
      * @throws IOException
      *             when failing to read from is
      */
     public static String readSeptets(InputStream is, int length) throws IOException
     {
-        StringBuffer msg = new StringBuffer(160);
+        byte[] data = new byte[getSeptetOctets(length)];
+        int nRead = 0;
+
+        while (nRead < data.length)
+        {
+            int n = is.read(data, nRead, data.length - nRead);
+
+            if (n == -1) 
+            { 
+                throw new IOException("Unexpected end of stream"); 
+            }
+
+            nRead += n;
+        }
+
+        return readSeptets(data, length);
+    }
+
+    /**
+     * Returns the number of septets needed to encode the given text.
+     * <p>
+     * Chars from the extension table need two septets, chars that can't be
+     * encoded are counted as one septet ('?').
+     * 
+     * @param text
+     *            The text
+     * @return Number of septets
+     */
+    public static int getSeptetCount(CharSequence text)
+    {
+        return getSeptetCount(text, GSM_DEFAULT_ALPHABET_LOOKUP);
+    }
+
+    /**
+     * Returns the number of septets needed to encode the given text with
+     * national language tables.
+     * 
+     * @param text
+     *            The text
+     * @param lockingShift
+     *            National language of the locking shift table
+     * @param singleShift
+     *            National language of the single shift table
+     * @return Number of septets
+     */
+    public static int getSeptetCount(CharSequence text, int lockingShift, int singleShift)
+    {
+        return getSeptetCount(text, getLookup(lockingShift, singleShift));
+    }
+
+    private static int getSeptetCount(CharSequence text, GsmAlphabetLookup lookup)
+    {
+        int nSeptets = 0;
+
+        for (int i = 0; i < text.length(); i++)
+        {
+            int width = lookup.getSeptetWidth(text.charAt(i));
+            nSeptets += (width == 0) ? 1 : width;
+        }
+
+        return nSeptets;
+    }
+
+    /**
+     * Returns the number of septets needed to encode the given char, 0 if it
+     * can't be encoded in the default alphabet.
+     * 
+     * @param ch
+     *            The char
+     * @return 1, 2 or 0
+     */
+    static int getSeptetWidth(char ch)
+    {
+        return GSM_DEFAULT_ALPHABET_LOOKUP.getSeptetWidth(ch);
+    }
+
+    /**
+     * Returns true if there are tables for the given combination of national
+     * languages.
+     * <p>
+     * The locking shift and single shift tables can be combined freely, but
+     * not all languages have a locking shift table.
+     * 
+     * @param lockingShift
+     *            National language of the locking shift table
+     * @param singleShift
+     *            National language of the single shift table
+     * @return true if the combination can be used
+     */
+    public static boolean isNationalLanguageSupported(int lockingShift, int singleShift)
+    {
+        return (lockingShift >= 0) && (lockingShift < N_NATIONAL_LANGUAGES)
+            && (singleShift >= 0) && (singleShift < N_NATIONAL_LANGUAGES)
+            && (GSM_LOCKING_SHIFT_TABLES[lockingShift] != null);
+    }
+
+    private static void checkNationalLanguage(int lockingShift, int singleShift)
+    {
+        if (!isNationalLanguageSupported(lockingShift, singleShift))
+        {
+            throw new IllegalArgumentException("Unsupported national language tables: "
+                    + lockingShift + ", " + singleShift);
+        }
+    }
+
+    /**
+     * Returns the reverse lookup for the given national languages.
+     * 
+     * @param lockingShift
+     *            National language of the locking shift table
+     * @param singleShift
+     *            National language of the single shift table
+     * @return The lookup
+     * @throws IllegalArgumentException
+     *             if the combination isn't supported
+     */
+    static GsmAlphabetLookup getLookup(int lockingShift, int singleShift)
+    {
+        checkNationalLanguage(lockingShift, singleShift);
+
+        return GSM_NATIONAL_LOOKUPS[lockingShift * N_NATIONAL_LANGUAGES + singleShift];
+    }
+
+    /**
+     * Looks up the given char in the default alphabet and extension table.
+     * 
+     * @param ch
+     *            The char
+     * @return The gsm value with GsmAlphabetLookup.EXTENSION set for chars
+     *         from the extension table, or GsmAlphabetLookup.UNMAPPED
+     */
+    static int lookupGsmChar(char ch)
+    {
+        return GSM_DEFAULT_ALPHABET_LOOKUP.get(ch);
+    }
+
+    /**
+     * Returns the number of octets needed to store the given number of
+     * packed septets.
+     * 
+     * @param nSeptets
+     *            Number of septets
+     * @return Number of octets
+     */
+    public static int getSeptetOctets(int nSeptets)
+    {
+        return (nSeptets * 7 + 7) / 8;
+    }
+
+    /**
+     * Writes the given text UCS2 (UTF-16BE) encoded.
+     * <p>
+     * Every UTF-16 code unit takes two octets, so chars outside the BMP
+     * (surrogate pairs) take four. A surrogate that isn't part of a pair is
+     * written as U+FFFD, the same as String.getBytes("UTF-16BE").
+     * 
+     * @param text
+     *            The text
+     * @param dest
+     *            Where to write the octets, must have room for
+     *            text.length() * 2 octets
+     * @param destOffset
+     *            Offset in dest
+     * @return Number of octets written
+     */
+    public static int writeUcs2(CharSequence text, byte[] dest, int destOffset)
+    {
+        int nChars = text.length();
+        int d = destOffset;
+
+        for (int i = 0; i < nChars; i++)
+        {
+            char ch = text.charAt(i);
+
+            if (isHighSurrogate(ch) && (i + 1 < nChars) && isLowSurrogate(text.charAt(i + 1)))
+            {
+                dest[d++] = (byte) (ch >> 8);
+                dest[d++] = (byte) ch;
+                ch = text.charAt(++i);
+            }
+            else if (isHighSurrogate(ch) || isLowSurrogate(ch))
+            {
+                ch = UCS2_REPLACEMENT_CHAR;
+            }
+
+            dest[d++] = (byte) (ch >> 8);
+            dest[d++] = (byte) ch;
+        }
+
+        return d - destOffset;
+    }
+
+    /**
+     * Writes the given text ISO-8859-1 encoded.
+     * <p>
+     * Chars above 0xFF are written as '?', the same as
+     * String.getBytes("ISO-8859-1"). A surrogate pair gives one '?'.
+     * 
+     * @param text
+     *            The text
+     * @param dest
+     *            Where to write the octets, must have room for text.length()
+     *            octets
+     * @param destOffset
+     *            Offset in dest
+     * @return Number of octets written
+     */
+    public static int writeLatin1(CharSequence text, byte[] dest, int destOffset)
+    {
+        int nChars = text.length();
+        int d = destOffset;
+
+        for (int i = 0; i < nChars; i++)
+        {
+            char ch = text.charAt(i);
+
+            if (ch > 0xff)
+            {
+                if (isHighSurrogate(ch) && (i + 1 < nChars) && isLowSurrogate(text.charAt(i + 1)))
+                {
+                    i++;
+                }
+                ch = '?';
+            }
+
+            dest[d++] = (byte) ch;
+        }
+
+        return d - destOffset;
+    }
+
+    /**
+     * Returns the number of octets needed to encode the given text in
+     * ISO-8859-1, see writeLatin1().
+     * 
+     * @param text
+     *            The text
+     * @return Number of octets
+     */
+    public static int getLatin1Length(CharSequence text)
+    {
+        int nChars = text.length();
+        int length = nChars;
+
+        for (int i = 0; i + 1 < nChars; i++)
+        {
+            if (isHighSurrogate(text.charAt(i)) && isLowSurrogate(text.charAt(i + 1)))
+            {
+                length--;
+                i++;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Returns true if the char is the first half of a surrogate pair.
+     * 
+     * @param ch
+     *            The char
+     * @return true for 0xD800 - 0xDBFF
+     */
+    public static boolean isHighSurrogate(char ch)
+    {
+        return (ch >= 0xD800) && (ch <= 0xDBFF);
+    }
+
+    /**
+     * Returns true if the char is the second half of a surrogate pair.
+     * 
+     * @param ch
+     *            The char
+     * @return true for 0xDC00 - 0xDFFF
+     */
+    public static boolean isLowSurrogate(char ch)
+    {
+        return (ch >= 0xDC00) && (ch <= 0xDFFF);
+    }
+
+    /**
+     * Packs septets stored one per byte into octets.
+     * <p>
+     * Eight septets are packed into a long and written as seven octets at a
+     * time, the last (count % 8) septets are packed one by one.
+     * 
+     * @param septets
+     *            The septets, only the lower 7 bits of each byte are used
+     * @param offset
+     *            Offset of the first septet
+     * @param count
+     *            Number of septets to pack
+     * @param dest
+     *            Where to write the packed octets, must have room for
+     *            getSeptetOctets(count) octets
+     * @param destOffset
+     *            Offset of the first octet in dest
+     * @return Number of octets written
+     */
+    public static int packSeptets(byte[] septets, int offset, int count, byte[] dest, int destOffset)
+    {
+        int s = offset;
+        int d = destOffset;
+        int end = offset + count;
+        int blockEnd = offset + (count & ~7);
+
+        while (s < blockEnd)
+        {
+            long word = (septets[s] & 0x7fL)
+                | ((septets[s + 1] & 0x7fL) << 7)
+                | ((septets[s + 2] & 0x7fL) << 14)
+                | ((septets[s + 3] & 0x7fL) << 21)
+                | ((septets[s + 4] & 0x7fL) << 28)
+                | ((septets[s + 5] & 0x7fL) << 35)
+                | ((septets[s + 6] & 0x7fL) << 42)
+                | ((septets[s + 7] & 0x7fL) << 49);
+
+            dest[d] = (byte) word;
+            dest[d + 1] = (byte) (word >>> 8);
+            dest[d + 2] = (byte) (word >>> 16);
+            dest[d + 3] = (byte) (word >>> 24);
+            dest[d + 4] = (byte) (word >>> 32);
+            dest[d + 5] = (byte) (word >>> 40);
+            dest[d + 6] = (byte) (word >>> 48);
 
+            s += 8;
+            d += 7;
+        }
+
+        // Tail, less than 8 septets
         int rest = 0;
         int restBits = 0;
 
-        while (msg.length() < length)
+        while (s < end)
         {
-            int data = is.read();
+            rest |= (septets[s++] & 0x7f) << restBits;
+            restBits += 7;
 
-            if (data == -1) 
-            { 
-                throw new IOException("Unexpected end of stream"); 
+            if (restBits >= 8)
+            {
+                dest[d++] = (byte) rest;
+                rest >>>= 8;
+                restBits -= 8;
             }
+        }
 
-            rest |= (data << restBits);
-            restBits += 8;
+        if (restBits > 0)
+        {
+            dest[d++] = (byte) rest;
+        }
 
-            while ((msg.length() < length) && (restBits >= 7))
+        return d - destOffset;
+    }
+
+    /**
+     * Unpacks octets into septets stored one per byte.
+     * <p>
+     * Seven octets are read into a long and split into eight septets at a
+     * time, the last (count % 8) septets are unpacked one by one.
+     * 
+     * @param data
+     *            The packed octets
+     * @param offset
+     *            Offset of the first octet
+     * @param septets
+     *            Where to write the septets
+     * @param septetOffset
+     *            Offset of the first septet in septets
+     * @param count
+     *            Number of septets to unpack
+     */
+    public static void unpackSeptets(byte[] data, int offset, byte[] septets, int septetOffset, int count)
+    {
+        int s = offset;
+        int d = septetOffset;
+        int end = septetOffset + count;
+        int blockEnd = septetOffset + (count & ~7);
+
+        while (d < blockEnd)
+        {
+            long word = (data[s] & 0xffL)
+                | ((data[s + 1] & 0xffL) << 8)
+                | ((data[s + 2] & 0xffL) << 16)
+                | ((data[s + 3] & 0xffL) << 24)
+                | ((data[s + 4] & 0xffL) << 32)
+                | ((data[s + 5] & 0xffL) << 40)
+                | ((data[s + 6] & 0xffL) << 48);
+
+            septets[d] = (byte) (word & 0x7f);
+            septets[d + 1] = (byte) ((word >>> 7) & 0x7f);
+            septets[d + 2] = (byte) ((word >>> 14) & 0x7f);
+            septets[d + 3] = (byte) ((word >>> 21) & 0x7f);
+            septets[d + 4] = (byte) ((word >>> 28) & 0x7f);
+            septets[d + 5] = (byte) ((word >>> 35) & 0x7f);
+            septets[d + 6] = (byte) ((word >>> 42) & 0x7f);
+            septets[d + 7] = (byte) ((word >>> 49) & 0x7f);
+
+            s += 7;
+            d += 8;
+        }
+
+        // Tail, less than 8 septets
+        int rest = 0;
+        int restBits = 0;
+
+        while (d < end)
+        {
+            if (restBits < 7)
             {
-                msg.append(fromGsmCharset((byte) (rest & 0x7f)));
+                rest |= (data[s++] & 0xff) << restBits;
+                restBits += 8;
+            }
 
-                rest >>>= 7;
-                restBits -= 7;
+            septets[d++] = (byte) (rest & 0x7f);
+            rest >>>= 7;
+            restBits -= 7;
+        }
+    }
+
+    /**
+     * Returns the septet with the given index from packed septets.
+     * 
+     * @param data
+     *            The packed septets
+     * @param index
+     *            Index of the septet
+     * @return The septet
+     */
+    public static int getSeptet(byte[] data, int index)
+    {
+        return readBits(data, index * 7, 7);
+    }
+
+    /**
+     * Copies bits between two byte arrays.
+     * <p>
+     * Bits are numbered from the least significant bit of the first octet,
+     * the same order as septets are packed in. Bits in dest outside the
+     * copied range are left unchanged.
+     * <p>
+     * If source and destination are aligned the octets are copied with
+     * System.arraycopy, otherwise one destination octet at a time is read
+     * from a 16 bit window of the source.
+     * 
+     * @param src
+     *            Source array
+     * @param srcBitOffset
+     *            Offset of the first bit to copy
+     * @param dest
+     *            Destination array
+     * @param destBitOffset
+     *            Where to write the first bit
+     * @param nBits
+     *            Number of bits to copy
+     */
+    public static void copyBits(byte[] src, int srcBitOffset, byte[] dest, int destBitOffset, int nBits)
+    {
+        int s = srcBitOffset;
+        int d = destBitOffset;
+        int n = nBits;
+
+        // Fill up the first destination octet
+        if (((d & 7) != 0) && (n > 0))
+        {
+            int nHead = Math.min(8 - (d & 7), n);
+            writeBits(dest, d, readBits(src, s, nHead), nHead);
+            s += nHead;
+            d += nHead;
+            n -= nHead;
+        }
+
+        // d is now on an octet boundary
+        int nBytes = n >>> 3;
+        if ((s & 7) == 0)
+        {
+            System.arraycopy(src, s >>> 3, dest, d >>> 3, nBytes);
+        }
+        else
+        {
+            int shift = s & 7;
+            int si = s >>> 3;
+            int di = d >>> 3;
+
+            for (int i = 0; i < nBytes; i++)
+            {
+                dest[di + i] = (byte) (((src[si + i] & 0xff) >>> shift) | (src[si + i + 1] << (8 - shift)));
             }
-        } // for
+        }
+        s += nBytes * 8;
+        d += nBytes * 8;
+        n -= nBytes * 8;
+
+        // The last bits
+        if (n > 0)
+        {
+            writeBits(dest, d, readBits(src, s, n), n);
+        }
+    }
 
-        return msg.toString();
+    /**
+     * Reads at most 8 bits starting at the given bit.
+     */
+    private static int readBits(byte[] data, int bitOffset, int nBits)
+    {
+        int i = bitOffset >>> 3;
+        int shift = bitOffset & 7;
+        int bits = (data[i] & 0xff) >>> shift;
+
+        if (shift + nBits > 8)
+        {
+            bits |= (data[i + 1] & 0xff) << (8 - shift);
+        }
+
+        return bits & ((1 << nBits) - 1);
+    }
+
+    /**
+     * Writes at most 8 bits that fit in the octet of the given bit.
+     */
+    private static void writeBits(byte[] data, int bitOffset, int bits, int nBits)
+    {
+        int i = bitOffset >>> 3;
+        int shift = bitOffset & 7;
+        int mask = ((1 << nBits) - 1) << shift;
+
+        data[i] = (byte) ((data[i] & ~mask) | ((bits << shift) & mask));
     }
 
     /**
@@ -277,77 +1040,75 @@ public final class SmsPduUtil
      */
     public static void writeBcdNumber(OutputStream os, String number) throws IOException
     {
-        int bcd = 0x00;
-        int n = 0;
+        int nDigits = number.length();
 
-        // First convert to a "half octet" value
-        for (int i = 0; i < number.length(); i++)
+        for (int i = 0; i < nDigits; i += 2)
         {
-            switch (number.charAt(i))
-            {
-            case '0':
-                bcd |= 0x00;
-                break;
-            case '1':
-                bcd |= 0x10;
-                break;
-            case '2':
-                bcd |= 0x20;
-                break;
-            case '3':
-                bcd |= 0x30;
-                break;
-            case '4':
-                bcd |= 0x40;
-                break;
-            case '5':
-                bcd |= 0x50;
-                break;
-            case '6':
-                bcd |= 0x60;
-                break;
-            case '7':
-                bcd |= 0x70;
-                break;
-            case '8':
-                bcd |= 0x80;
-                break;
-            case '9':
-                bcd |= 0x90;
-                break;
-            case '*':
-                bcd |= 0xA0;
-                break;
-            case '#':
-                bcd |= 0xB0;
-                break;
-            case 'a':
-                bcd |= 0xC0;
-                break;
-            case 'b':
-                bcd |= 0xE0;
-                break;
-            }
+            os.write(getBcdOctet(number, i, nDigits));
+        }
+    }
 
-            n++;
+    /**
+     * Writes the given phonenumber BCD coded into a buffer.
+     * <p>
+     * Two digits are stored in each octet, the first digit in the low
+     * nibble. An odd number of digits is padded with 0xF. Chars that aren't
+     * BCD digits are encoded as 0.
+     * 
+     * @param number
+     *            Number to convert, may contain 0-9, '*', '#', 'a', 'b' and 'c'
+     * @param dest
+     *            Where to write the octets, must have room for
+     *            getBcdOctets(number.length()) octets
+     * @param destOffset
+     *            Offset in dest
+     * @return Number of octets written
+     */
+    public static int writeBcdNumber(CharSequence number, byte[] dest, int destOffset)
+    {
+        int nDigits = number.length();
+        int d = destOffset;
 
-            if (n == 2)
-            {
-                os.write(bcd);
-                n = 0;
-                bcd = 0x00;
-            }
-            else
-            {
-                bcd >>= 4;
-            }
+        for (int i = 0; i < nDigits; i += 2)
+        {
+            dest[d++] = (byte) getBcdOctet(number, i, nDigits);
         }
 
-        if (n == 1)
+        return d - destOffset;
+    }
+
+    private static int getBcdOctet(CharSequence number, int i, int nDigits)
+    {
+        int bcd = getBcdNibble(number.charAt(i));
+
+        if (i + 1 < nDigits)
+        {
+            bcd |= getBcdNibble(number.charAt(i + 1)) << 4;
+        }
+        else
         {
             bcd |= 0xF0;
-            os.write(bcd);
         }
+
+        return bcd;
+    }
+
+    private static int getBcdNibble(char ch)
+    {
+        return (ch < BCD_VALUES.length) ? BCD_VALUES[ch] : 0;
+    }
+
+    /**
+     * Returns the number of octets needed to BCD code the given number of
+     * digits.
+     * 
+     * @param nDigits
+     *            Number of digits
+     * @return Number of octets
+     */
+    public static int getBcdOctets(int nDigits)
+    {
+        return (nDigits + 1) / 2;
     }
 
     /**
@@ -361,9 +1122,31 @@ public final class SmsPduUtil
      */
     public static String readBcdNumber(InputStream is, int length) throws IOException
     {
-        byte[] arr = new byte[length];
-        is.read(arr, 0, length);
-        return readBcdNumber(arr, 0, length);
+        StringBuffer out = new StringBuffer(length * 2);
+
+        for (int i = 0; i < length; i++)
+        {
+            int bcd = is.read();
+
+            if (bcd == -1)
+            {
+                throw new IOException("Unexpected end of stream");
+            }
+
+            appendBcdDigit(out, bcd & 0x0f);
+            appendBcdDigit(out, (bcd >> 4) & 0x0f);
+        }
+
+        return out.toString();
+    }
+
+    private static void appendBcdDigit(StringBuffer out, int nibble)
+    {
+        char ch = BCD_DIGITS[nibble];
+        if (ch != 0)
+        {
+            out.append(ch);
+        }
     }
 
     /**
@@ -378,37 +1161,49 @@ public final class SmsPduUtil
      */
     public static String readBcdNumber(byte[] data, int offset, int length)
     {
-        StringBuffer out = new StringBuffer();
+        char[] chars = new char[length * 2];
+        int nChars = readBcdNumber(data, offset, length, chars, 0);
+
+        return new String(chars, 0, nChars);
+    }
+
+    /**
+     * Decodes BCD coded octets into a char buffer.
+     * <p>
+     * The 0xF filler nibble is skipped.
+     * 
+     * @param data
+     *            The BCD coded octets
+     * @param offset
+     *            Offset of the first octet
+     * @param length
+     *            Number of octets to decode
+     * @param dest
+     *            Where to write the digits, must have room for length * 2 chars
+     * @param destOffset
+     *            Offset in dest
+     * @return Number of chars written
+     */
+    public static int readBcdNumber(byte[] data, int offset, int length, char[] dest, int destOffset)
+    {
+        int d = destOffset;
+
         for (int i = offset; i < offset + length; i++)
         {
-            int arrb = data[i];
-            if ((data[i] & 15) <= 9)
-            {
-                out.append("" + (data[i] & 15));
-            }
-            if ((data[i] & 15) == 0xA)
-            {
-                out.append("*");
-            }
-            if ((data[i] & 15) == 0xB)
-            {
-                out.append("#");
-            }
-            arrb = (arrb >>> 4);
-            if ((arrb & 15) <= 9)
-            {
-                out.append("" + (arrb & 15));
-            }
-            if ((arrb & 15) == 0xA)
+            char low = BCD_DIGITS[data[i] & 0x0f];
+            char high = BCD_DIGITS[(data[i] >> 4) & 0x0f];
+
+            if (low != 0)
             {
-                out.append("*");
+                dest[d++] = low;
             }
-            if ((arrb & 15) == 0xB)
+            if (high != 0)
             {
-                out.append("#");
+                dest[d++] = high;
             }
         }
-        return out.toString();
+
+        return d - destOffset;
     }
 
     /**
@@ -423,20 +1218,147 @@ public final class SmsPduUtil
         return GSM_DEFAULT_ALPHABET_TABLE[gsmChar];
     }
 
+    /**
+     * Convert a char from the GSM extension table to a unicode char
+     * <p>
+     * Undefined values are converted using the default alphabet, as
+     * specified by GSM 03.38.
+     * 
+     * @param gsmChar
+     *            The gsm char following the escape
+     * @return Unicode representation of the given gsm char
+     */
+    public static char fromGsmExtensionCharset(byte gsmChar)
+    {
+        char ch = GSM_EXTENSION_ALPHABET_DECODE[gsmChar & 0x7f];
+        return (ch != 0) ? ch : GSM_DEFAULT_ALPHABET_TABLE[gsmChar & 0x7f];
+    }
+
+    /**
+     * Convert GSM chars, stored one per byte, to a unicode string
+     * <p>
+     * Escape sequences are converted using the extension table.
+     * 
+     * @param gsmChars
+     *            The gsm chars to convert
+     * @param offset
+     *            Offset of the first char
+     * @param length
+     *            Number of septets to convert
+     * @return The unicode string
+     */
+    public static String fromGsmCharset(byte[] gsmChars, int offset, int length)
+    {
+        return fromGsmCharset(gsmChars, offset, length,
+                SmsConstants.NATIONAL_LANGUAGE_NONE, SmsConstants.NATIONAL_LANGUAGE_NONE);
+    }
+
+    /**
+     * Convert GSM chars, stored one per byte, to a unicode string using
+     * national language tables
+     * <p>
+     * Escape sequences are converted using the single shift table, values
+     * that are undefined there are converted using the locking shift table.
+     * 
+     * @param gsmChars
+     *            The gsm chars to convert
+     * @param offset
+     *            Offset of the first char
+     * @param length
+     *            Number of septets to convert
+     * @param lockingShift
+     *            National language of the locking shift table
+     * @param singleShift
+     *            National language of the single shift table
+     * @return The unicode string
+     */
+    public static String fromGsmCharset(byte[] gsmChars, int offset, int length, int lockingShift, int singleShift)
+    {
+        checkNationalLanguage(lockingShift, singleShift);
+
+        char[] table = GSM_LOCKING_SHIFT_TABLES[lockingShift];
+        char[] shiftTable = GSM_SINGLE_SHIFT_DECODE[singleShift];
+        char[] chars = new char[length];
+        int nChars = 0;
+        int end = offset + length;
+
+        for (int i = offset; i < end; i++)
+        {
+            int gsmChar = gsmChars[i] & 0x7f;
+
+            if ((gsmChar == EXT_TABLE_PREFIX) && (i + 1 < end))
+            {
+                gsmChar = gsmChars[++i] & 0x7f;
+                char ch = shiftTable[gsmChar];
+                chars[nChars++] = (ch != 0) ? ch : table[gsmChar];
+            }
+            else
+            {
+                chars[nChars++] = table[gsmChar];
+            }
+        }
+
+        return new String(chars, 0, nChars);
+    }
+
     /**
      * Converts a unicode string to GSM charset
+     * <p>
+     * Chars from the extension table are converted into two values,
+     * EXT_TABLE_PREFIX and the value in the extension table. The returned
+     * array can therefore be longer than the string.
      * 
      * @param str
      *            String to convert
-     * @return The string GSM encoded
+     * @return The string GSM encoded, one septet per byte
      */
     public static byte[] toGsmCharset(String str)
     {
-        byte[] gsmBytes = new byte[str.length()];
+        return toGsmCharset(str, GSM_DEFAULT_ALPHABET_LOOKUP);
+    }
+
+    /**
+     * Converts a unicode string to GSM charset using national language tables
+     * <p>
+     * Chars from the single shift table are converted into two values,
+     * EXT_TABLE_PREFIX and the value in the single shift table.
+     * 
+     * @param str
+     *            String to convert
+     * @param lockingShift
+     *            National language of the locking shift table
+     * @param singleShift
+     *            National language of the single shift table
+     * @return The string GSM encoded, one septet per byte
+     */
+    public static byte[] toGsmCharset(String str, int lockingShift, int singleShift)
+    {
+        return toGsmCharset(str, getLookup(lockingShift, singleShift));
+    }
+
+    private static byte[] toGsmCharset(String str, GsmAlphabetLookup lookup)
+    {
+        int nChars = str.length();
+        byte[] gsmBytes = new byte[getSeptetCount(str, lookup)];
+        int n = 0;
 
-        for (int i = 0; i < gsmBytes.length; i++)
+        for (int i = 0; i < nChars; i++)
         {
-            gsmBytes[i] = toGsmCharset(str.charAt(i));
+            int gsmChar = lookup.get(str.charAt(i));
+
+            if (gsmChar == GsmAlphabetLookup.UNMAPPED)
+            {
+                gsmBytes[n++] = '?';
+            }
+            else if ((gsmChar & GsmAlphabetLookup.EXTENSION) != 0)
+            {
+                gsmBytes[n++] = EXT_TABLE_PREFIX;
+                gsmBytes[n++] = (byte) (gsmChar & 0x7f);
+            }
+            else
+            {
+                gsmBytes[n++] = (byte) gsmChar;
+            }
         }
 
         return gsmBytes;
@@ -444,6 +1366,9 @@ public final class SmsPduUtil
 
     /**
      * Convert a unicode char to a GSM char
+     * <p>
+     * Chars from the extension table need two septets and are converted to
+     * '?' by this method, use toGsmCharset(String) for them.
      * 
      * @param ch
      *            The unicode char to convert
@@ -451,27 +1376,15 @@ public final class SmsPduUtil
      */
     public static byte toGsmCharset(char ch)
     {
-        // First check through the GSM charset table
-        for (int i = 0; i < GSM_DEFAULT_ALPHABET_TABLE.length; i++)
-        {
-            if (GSM_DEFAULT_ALPHABET_TABLE[i] == ch)
-            {
-                // Found the correct char
-                return (byte) i;
-            }
-        }
+        int gsmChar = GSM_DEFAULT_ALPHABET_LOOKUP.get(ch);
 
-        // Alternative chars.
-        for (int i = 0; i < GSM_DEFAULT_ALPHABET_ALTERNATIVES.length / 2; i += 2)
+        if ((gsmChar == GsmAlphabetLookup.UNMAPPED) || ((gsmChar & GsmAlphabetLookup.EXTENSION) != 0))
         {
-            if (GSM_DEFAULT_ALPHABET_ALTERNATIVES[i * 2] == ch) 
-            { 
-                return (byte) (GSM_DEFAULT_ALPHABET_ALTERNATIVES[i * 2 + 1] & 0x7f); 
-            }
+            // Couldn't find a valid char
+            return '?';
         }
 
-        // Couldn't find a valid char
-        return '?';
+        return (byte) gsmChar;
     }
 
     public static void arrayCopy(byte[] src, int srcStart, byte[] dest, int destStart, int length)
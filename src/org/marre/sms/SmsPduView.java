@@ -0,0 +1,704 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is "SMS Library for the Java platform".
+ *
+ * The Initial Developer of the Original Code is Markus Eriksson.
+ * Portions created by the Initial Developer are Copyright (C) 2002
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.marre.sms;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only view of a received SMS-DELIVER or SMS-STATUS-REPORT pdu.
+ * <p>
+ * wrap() only finds the positions of the fields, nothing is copied or
+ * decoded until a field is read. The same view can be wrapped around any
+ * number of pdus, for example when a whole list from AT+CMGL is scanned.
+ * <p>
+ * The pdu can be given as a byte array or a ByteBuffer, the buffer is read
+ * with absolute gets so its position isn't changed. The pdu must not be
+ * modified while it is wrapped.
+ * <p>
+ * Text is decoded with the SmsPduUtil alphabet tables, including the
+ * national language tables given by the shift elements in the UDH.
+ */
+public final class SmsPduView
+{
+    /** TP-MTI of an SMS-DELIVER. */
+    public static final int TYPE_DELIVER = 0;
+    /** TP-MTI of an SMS-STATUS-REPORT. */
+    public static final int TYPE_STATUS_REPORT = 2;
+
+    private static final int TP_UDHI = 0x40;
+    private static final int TP_PI_PID = 0x01;
+    private static final int TP_PI_DCS = 0x02;
+    private static final int TP_PI_UDL = 0x04;
+
+    private static final int TIMESTAMP_OCTETS = 7;
+
+    /** The pdu if it is an array, otherwise null. */
+    private byte[] data_;
+    /** The pdu if it is a buffer without array, otherwise null. */
+    private ByteBuffer buffer_;
+    private int end_;
+
+    /** Positions of the fields in data_ or buffer_, -1 if not present. */
+    private int firstOctetPos_;
+    private int addressPos_;
+    private int pidPos_;
+    private int dcsPos_;
+    private int sctsPos_;
+    private int dischargeTimePos_;
+    private int statusPos_;
+    private int udlPos_;
+    private int udPos_;
+
+    private int firstOctet_;
+    private int dcsValue_;
+    private int alphabet_;
+    private int udOctets_;
+
+    /** Used to decode fields of a buffer without array. */
+    private byte[] scratch_;
+
+    /** Used to find the national language shift elements. */
+    private SmsUdhCursor cursor_;
+
+    /**
+     * Creates a view, call wrap() before reading any field.
+     */
+    public SmsPduView()
+    {
+        // Empty
+    }
+
+    /**
+     * Wraps a pdu that starts with the SMSC address, as given by Android
+     * and AT+CMGL/AT+CMGR in PDU mode.
+     *
+     * @param pdu The pdu
+     * @return this
+     * @throws SmsException If the pdu is truncated or isn't an SMS-DELIVER
+     * or SMS-STATUS-REPORT
+     */
+    public SmsPduView wrap(byte[] pdu) throws SmsException
+    {
+        return wrap(pdu, 0, pdu.length, true);
+    }
+
+    /**
+     * Wraps a pdu in a byte array.
+     *
+     * @param pdu Array with the pdu
+     * @param offset Start of the pdu
+     * @param length Length of the pdu
+     * @param smsc true if the pdu starts with the SMSC address
+     * @return this
+     * @throws SmsException If the pdu is truncated or isn't an SMS-DELIVER
+     * or SMS-STATUS-REPORT
+     */
+    public SmsPduView wrap(byte[] pdu, int offset, int length, boolean smsc) throws SmsException
+    {
+        data_ = pdu;
+        buffer_ = null;
+        return parse(offset, offset + length, smsc);
+    }
+
+    /**
+     * Wraps the pdu between the position and limit of a buffer.
+     *
+     * @param pdu Buffer with the pdu
+     * @param smsc true if the pdu starts with the SMSC address
+     * @return this
+     * @throws SmsException If the pdu is truncated or isn't an SMS-DELIVER
+     * or SMS-STATUS-REPORT
+     */
+    public SmsPduView wrap(ByteBuffer pdu, boolean smsc) throws SmsException
+    {
+        if (pdu.hasArray())
+        {
+            data_ = pdu.array();
+            buffer_ = null;
+            int offset = pdu.arrayOffset() + pdu.position();
+            return parse(offset, offset + pdu.remaining(), smsc);
+        }
+
+        data_ = null;
+        buffer_ = pdu;
+        return parse(pdu.position(), pdu.limit(), smsc);
+    }
+
+    private SmsPduView parse(int start, int end, boolean smsc) throws SmsException
+    {
+        int pos = start;
+
+        end_ = end;
+        addressPos_ = -1;
+        pidPos_ = -1;
+        dcsPos_ = -1;
+        sctsPos_ = -1;
+        dischargeTimePos_ = -1;
+        statusPos_ = -1;
+        udlPos_ = -1;
+        udPos_ = -1;
+        udOctets_ = 0;
+
+        if (smsc)
+        {
+            pos += 1 + get(check(pos, 1));
+        }
+
+        firstOctetPos_ = check(pos, 1);
+        firstOctet_ = get(pos++);
+
+        switch (getMessageType())
+        {
+        case TYPE_DELIVER:
+            addressPos_ = pos;
+            pos = skipAddress(pos);
+            pidPos_ = check(pos++, 1);
+            dcsPos_ = check(pos++, 1);
+            sctsPos_ = check(pos, TIMESTAMP_OCTETS);
+            pos += TIMESTAMP_OCTETS;
+            udlPos_ = check(pos++, 1);
+            break;
+
+        case TYPE_STATUS_REPORT:
+            // TP-MR
+            check(pos++, 1);
+            addressPos_ = pos;
+            pos = skipAddress(pos);
+            sctsPos_ = check(pos, TIMESTAMP_OCTETS);
+            pos += TIMESTAMP_OCTETS;
+            dischargeTimePos_ = check(pos, TIMESTAMP_OCTETS);
+            pos += TIMESTAMP_OCTETS;
+            statusPos_ = check(pos++, 1);
+
+            // The TP-PI and the fields it points out are optional
+            if (pos < end_)
+            {
+                int pi = get(pos++);
+                if ((pi & TP_PI_PID) != 0)
+                {
+                    pidPos_ = check(pos++, 1);
+                }
+                if ((pi & TP_PI_DCS) != 0)
+                {
+                    dcsPos_ = check(pos++, 1);
+                }
+                if ((pi & TP_PI_UDL) != 0)
+                {
+                    udlPos_ = check(pos++, 1);
+                }
+            }
+            break;
+
+        default:
+            throw new SmsException("Unsupported message type " + getMessageType());
+        }
+
+        dcsValue_ = (dcsPos_ >= 0) ? get(dcsPos_) : 0;
+        alphabet_ = SmsDcs.valueOf((byte) dcsValue_).getAlphabet();
+
+        if (udlPos_ >= 0)
+        {
+            int udl = get(udlPos_);
+
+            udPos_ = udlPos_ + 1;
+            udOctets_ = isSeptetEncoded() ? SmsPduUtil.getSeptetOctets(udl) : udl;
+            check(udPos_, udOctets_);
+
+            if (hasUserDataHeader())
+            {
+                // The UDH must fit in the user data, for septets as well
+                // as octets, or there would be a negative amount of text
+                if (udOctets_ < 1 || 1 + get(udPos_) > udOctets_)
+                {
+                    throw new SmsException("UDH longer than user data");
+                }
+            }
+        }
+
+        return this;
+    }
+
+    private int skipAddress(int pos) throws SmsException
+    {
+        int nDigits = get(check(pos, 2));
+        return check(pos, 2 + (nDigits + 1) / 2) + 2 + (nDigits + 1) / 2;
+    }
+
+    private int check(int pos, int length) throws SmsException
+    {
+        if (pos + length > end_)
+        {
+            throw new SmsException("Truncated pdu");
+        }
+        return pos;
+    }
+
+    private int get(int pos)
+    {
+        return ((data_ != null) ? data_[pos] : buffer_.get(pos)) & 0xff;
+    }
+
+    /**
+     * Returns an array with the given field, the pdu itself if possible.
+     *
+     * @return Offset of the field in the returned array
+     */
+    private byte[] getField(int pos, int length)
+    {
+        if (data_ != null)
+        {
+            return data_;
+        }
+
+        if ((scratch_ == null) || (scratch_.length < length))
+        {
+            scratch_ = new byte[Math.max(length, SmsConcatMessage.MAX_UD_OCTETS)];
+        }
+        for (int i = 0; i < length; i++)
+        {
+            scratch_[i] = buffer_.get(pos + i);
+        }
+        return scratch_;
+    }
+
+    private int getFieldOffset(int pos)
+    {
+        return (data_ != null) ? pos : 0;
+    }
+
+    private boolean isSeptetEncoded()
+    {
+        return (alphabet_ == SmsDcs.ALPHABET_GSM);
+    }
+
+    /**
+     * Returns the TP-MTI.
+     *
+     * @return TYPE_DELIVER or TYPE_STATUS_REPORT
+     */
+    public int getMessageType()
+    {
+        return firstOctet_ & 0x03;
+    }
+
+    /**
+     * Returns the first octet of the TPDU, with TP-MTI, TP-UDHI and the
+     * other flags.
+     *
+     * @return The first octet
+     */
+    public int getFirstOctet()
+    {
+        return firstOctet_;
+    }
+
+    /**
+     * Returns true if the user data starts with a UDH.
+     *
+     * @return true if TP-UDHI is set
+     */
+    public boolean hasUserDataHeader()
+    {
+        return ((firstOctet_ & TP_UDHI) != 0) && (udPos_ >= 0);
+    }
+
+    /**
+     * Returns the TP-MR of an SMS-STATUS-REPORT.
+     *
+     * @return The message reference of the sent message, -1 for an
+     * SMS-DELIVER
+     */
+    public int getMessageReference()
+    {
+        return (getMessageType() == TYPE_STATUS_REPORT) ? get(firstOctetPos_ + 1) : -1;
+    }
+
+    /**
+     * Returns the position of the address field, starting with the length
+     * in digits.
+     *
+     * @return Offset in the wrapped array or buffer
+     */
+    public int getAddressOffset()
+    {
+        return addressPos_;
+    }
+
+    /**
+     * Returns the type-of-address of the address field.
+     *
+     * @return The TON and NPI, as in SmsAddress
+     */
+    public int getAddressType()
+    {
+        return get(addressPos_ + 1);
+    }
+
+    /**
+     * Returns the originator of an SMS-DELIVER or the recipient of an
+     * SMS-STATUS-REPORT.
+     * <p>
+     * International numbers get a "+" prefix, alphanumeric addresses are
+     * decoded from the GSM alphabet.
+     *
+     * @return The address
+     */
+    public String getAddress()
+    {
+        int nDigits = get(addressPos_);
+        int toa = get(addressPos_ + 1);
+        int nOctets = (nDigits + 1) / 2;
+        int pos = addressPos_ + 2;
+        byte[] field = getField(pos, nOctets);
+        int offset = getFieldOffset(pos);
+
+        if (((toa >> 4) & 0x07) == SmsConstants.TON_ALPHANUMERIC)
+        {
+            int nSeptets = (nDigits * 4) / 7;
+            byte[] septets = new byte[nSeptets];
+            for (int i = 0; i < nSeptets; i++)
+            {
+                septets[i] = (byte) getSeptet(field, offset * 8 + i * 7, offset + nOctets);
+            }
+            return SmsPduUtil.fromGsmCharset(septets, 0, nSeptets);
+        }
+
+        boolean international = (((toa >> 4) & 0x07) == SmsConstants.TON_INTERNATIONAL);
+        char[] chars = new char[nOctets * 2 + 1];
+        int nChars = 0;
+
+        if (international)
+        {
+            chars[nChars++] = '+';
+        }
+        nChars += SmsPduUtil.readBcdNumber(field, offset, nOctets, chars, nChars);
+
+        return new String(chars, 0, nChars);
+    }
+
+    /**
+     * Returns the TP-PID.
+     *
+     * @return The protocol identifier, 0 if not present
+     */
+    public int getProtocolIdentifier()
+    {
+        return (pidPos_ >= 0) ? get(pidPos_) : 0;
+    }
+
+    /**
+     * Returns the TP-DCS.
+     *
+     * @return The data coding scheme, the GSM alphabet if not present
+     */
+    public SmsDcs getDcs()
+    {
+        return SmsDcs.valueOf((byte) dcsValue_);
+    }
+
+    /**
+     * Returns the TP-SCTS.
+     *
+     * @return The service centre time stamp, in ms since 1970-01-01 UTC
+     */
+    public long getServiceCentreTimeStamp()
+    {
+        return getTimeStamp(sctsPos_);
+    }
+
+    /**
+     * Returns the TP-DT of an SMS-STATUS-REPORT.
+     *
+     * @return The discharge time, in ms since 1970-01-01 UTC. 0 for an
+     * SMS-DELIVER.
+     */
+    public long getDischargeTime()
+    {
+        return (dischargeTimePos_ >= 0) ? getTimeStamp(dischargeTimePos_) : 0;
+    }
+
+    /**
+     * Returns the TP-ST of an SMS-STATUS-REPORT.
+     *
+     * @return The status, -1 for an SMS-DELIVER
+     */
+    public int getStatus()
+    {
+        return (statusPos_ >= 0) ? get(statusPos_) : -1;
+    }
+
+    /**
+     * Returns the position of the UDH, starting with the UDHL octet.
+     *
+     * @return Offset in the wrapped array or buffer, -1 if there isn't
+     * any UDH
+     */
+    public int getUserDataHeaderOffset()
+    {
+        return hasUserDataHeader() ? udPos_ : -1;
+    }
+
+    /**
+     * Returns the size of the UDH.
+     *
+     * @return Number of octets including the UDHL octet, 0 if there isn't
+     * any UDH
+     */
+    public int getUserDataHeaderLength()
+    {
+        return hasUserDataHeader() ? 1 + get(udPos_) : 0;
+    }
+
+    /**
+     * Returns a copy of the UDH, in the same form as
+     * SmsPdu.getUserDataHeaders().
+     *
+     * @return The UDH starting with the UDHL octet, null if there isn't
+     * any UDH
+     */
+    public byte[] getUserDataHeaders()
+    {
+        int length = getUserDataHeaderLength();
+        if (length == 0)
+        {
+            return null;
+        }
+
+        byte[] udh = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            udh[i] = (byte) get(udPos_ + i);
+        }
+        return udh;
+    }
+
+    /**
+     * Starts a walk of the UDH elements.
+     *
+     * @param cursor The cursor to reset
+     * @return cursor, reset to the UDH of this pdu. It has no elements if
+     * there isn't any UDH.
+     */
+    public SmsUdhCursor getUserDataHeaderCursor(SmsUdhCursor cursor)
+    {
+        int offset = getUserDataHeaderOffset();
+
+        if (data_ != null)
+        {
+            return cursor.reset(data_, offset);
+        }
+        return cursor.reset(buffer_, offset);
+    }
+
+    /**
+     * Returns the position of the user data, including the UDH.
+     *
+     * @return Offset in the wrapped array or buffer, -1 if there isn't
+     * any user data
+     */
+    public int getUserDataOffset()
+    {
+        return udPos_;
+    }
+
+    /**
+     * Returns the TP-UDL.
+     *
+     * @return Length of the user data including the UDH, in septets or
+     * octets depending on the DCS
+     */
+    public int getUserDataLength()
+    {
+        return (udlPos_ >= 0) ? get(udlPos_) : 0;
+    }
+
+    /**
+     * Decodes the text of the user data, without the UDH.
+     * <p>
+     * 8-bit user data is decoded as ISO-8859-1.
+     *
+     * @return The text, an empty string if there isn't any user data
+     */
+    public String getText()
+    {
+        if (udPos_ < 0)
+        {
+            return "";
+        }
+
+        int udhLength = getUserDataHeaderLength();
+        int pos = udPos_ + udhLength;
+        int end = Math.max(udPos_ + udOctets_, pos);
+
+        if (isSeptetEncoded())
+        {
+            // The text starts on the first septet boundary after the UDH
+            int skip = (udhLength * 8 + 6) / 7;
+            int nSeptets = Math.max(getUserDataLength() - skip, 0);
+            byte[] field = getField(udPos_, udOctets_);
+            int bitOffset = getFieldOffset(udPos_) * 8 + skip * 7;
+            int fieldEnd = getFieldOffset(udPos_) + udOctets_;
+            byte[] septets = new byte[nSeptets];
+
+            for (int i = 0; i < nSeptets; i++)
+            {
+                septets[i] = (byte) getSeptet(field, bitOffset + i * 7, fieldEnd);
+            }
+
+            return SmsPduUtil.fromGsmCharset(septets, 0, nSeptets, getNationalLanguage(
+                    SmsConstants.UDH_IEI_NATIONAL_LOCKING_SHIFT), getNationalLanguage(
+                    SmsConstants.UDH_IEI_NATIONAL_SINGLE_SHIFT));
+        }
+
+        if (alphabet_ == SmsDcs.ALPHABET_UCS2)
+        {
+            char[] chars = new char[(end - pos) / 2];
+            for (int i = 0; i < chars.length; i++, pos += 2)
+            {
+                chars[i] = (char) ((get(pos) << 8) | get(pos + 1));
+            }
+            return new String(chars);
+        }
+
+        char[] chars = new char[end - pos];
+        for (int i = 0; i < chars.length; i++)
+        {
+            chars[i] = (char) get(pos + i);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Finds the national language of a shift element in the UDH.
+     *
+     * @return One of SmsConstants.NATIONAL_LANGUAGE_*
+     */
+    private int getNationalLanguage(int iei)
+    {
+        if (cursor_ == null)
+        {
+            cursor_ = new SmsUdhCursor();
+        }
+        getUserDataHeaderCursor(cursor_);
+
+        while (cursor_.next(iei))
+        {
+            if (cursor_.getLength() == 1)
+            {
+                int language = cursor_.getOctet(0);
+                boolean supported = (iei == SmsConstants.UDH_IEI_NATIONAL_LOCKING_SHIFT)
+                        ? SmsPduUtil.isNationalLanguageSupported(language, SmsConstants.NATIONAL_LANGUAGE_NONE)
+                        : SmsPduUtil.isNationalLanguageSupported(SmsConstants.NATIONAL_LANGUAGE_NONE, language);
+                if (supported)
+                {
+                    return language;
+                }
+            }
+        }
+
+        return SmsConstants.NATIONAL_LANGUAGE_NONE;
+    }
+
+    /**
+     * Reads the septet that starts at the given bit.
+     */
+    private static int getSeptet(byte[] data, int bit, int end)
+    {
+        int pos = bit >> 3;
+        int value = data[pos] & 0xff;
+
+        if (pos + 1 < end)
+        {
+            value |= (data[pos + 1] & 0xff) << 8;
+        }
+
+        return (value >>> (bit & 7)) & 0x7f;
+    }
+
+    /**
+     * Decodes a semi-octet time stamp, as in GSM 03.40 9.2.3.11.
+     */
+    private long getTimeStamp(int pos)
+    {
+        int year = getSwappedBcd(pos);
+        int month = getSwappedBcd(pos + 1);
+        int day = getSwappedBcd(pos + 2);
+        int hour = getSwappedBcd(pos + 3);
+        int minute = getSwappedBcd(pos + 4);
+        int second = getSwappedBcd(pos + 5);
+
+        // The time zone is in quarters of an hour, bit 3 is the sign
+        int tz = get(pos + 6);
+        int quarters = (tz & 0x07) * 10 + ((tz >> 4) & 0x0f);
+        if ((tz & 0x08) != 0)
+        {
+            quarters = -quarters;
+        }
+
+        year += (year > 90) ? 1900 : 2000;
+
+        long days = getEpochDay(year, month, day);
+        long seconds = ((days * 24 + hour) * 60 + minute) * 60 + second;
+
+        return (seconds - quarters * 15 * 60) * 1000;
+    }
+
+    private int getSwappedBcd(int pos)
+    {
+        int value = get(pos);
+        return (value & 0x0f) * 10 + ((value >> 4) & 0x0f);
+    }
+
+    /**
+     * Returns the number of days since 1970-01-01 of a date in the
+     * Gregorian calendar.
+     */
+    private static long getEpochDay(int year, int month, int day)
+    {
+        // Count years from March so the leap day is last
+        if (month <= 2)
+        {
+            year--;
+            month += 12;
+        }
+
+        long era = year / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month - 3) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -46,6 +46,9 @@ public abstract class SmsPortAddressedMessage extends SmsConcatMessage
 {
     protected int destPort_;
     protected int origPort_;
+
+    /** The port UDH element, created when the ports are set. */
+    private SmsUdhElement[] portUdh_;
     
     /**
      * Creates a new SmsPortAddressedMessage with the given dest and orig port.
@@ -68,10 +71,17 @@ public abstract class SmsPortAddressedMessage extends SmsConcatMessage
     {
         destPort_ = destPort;
         origPort_ = origPort;
+        portUdh_ = new SmsUdhElement[] { SmsUdhUtil.get16BitApplicationPortUdh(destPort, origPort) };
     }
     
+    /**
+     * Returns the port UDH element.
+     * <p>
+     * The same array is returned until the ports are changed, it must not
+     * be modified.
+     */
     public SmsUdhElement[] getUdhElements()
     {
-        return new SmsUdhElement[] { SmsUdhUtil.get16BitApplicationPortUdh(destPort_, origPort_) };
+        return portUdh_;
     }
 }
@@ -55,7 +55,8 @@ public class SmsPortAddressedTextMessage extends SmsPortAddressedMessage
     public SmsPortAddressedTextMessage(int destPort, int origPort, String msg)
     {
         super(destPort, origPort);
-        smsTextMessage_ = new SmsTextMessage(msg);
+        // the alphabet depends on the room the port UDH leaves
+        smsTextMessage_ = new SmsTextMessage(msg, SmsUdhUtil.getTotalSize(super.getUdhElements()));
     }
     
     /**
@@ -102,6 +103,14 @@ public class SmsPortAddressedTextMessage extends SmsPortAddressedMessage
     {
         return smsTextMessage_.getUserData();
     }
+
+    /**
+     * Returns the port UDH element followed by the UDH elements of the text.
+     */
+    public SmsUdhElement[] getUdhElements()
+    {
+        return SmsUdhUtil.merge(super.getUdhElements(), smsTextMessage_.getUdhElements());
+    }
     
     /**
      * Returns the text message. 
@@ -0,0 +1,380 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is "SMS Library for the Java platform".
+ *
+ * The Initial Developer of the Original Code is Markus Eriksson.
+ * Portions created by the Initial Developer are Copyright (C) 2002
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.marre.sms;
+
+/**
+ * Calculates the size of a text in the different alphabets.
+ * <p>
+ * Gives the exact number of septets (GSM, including escape sequences for the
+ * extension table) or octets (8-bit, UCS2) and the number of PDUs that
+ * SmsConcatMessage.getPdus() would create for each alphabet. This is used to
+ * pick the alphabet that needs the fewest PDUs.
+ * <p>
+ * If the text can't be encoded with the default GSM alphabet the national
+ * language tables are tried. The combination that needs the fewest PDUs,
+ * including the space taken by the shift UDH elements, is used for GSM.
+ * <p>
+ * An analyzer can be reused for any number of texts. The static calculate()
+ * gives the size in one alphabet without allocating anything.
+ */
+public class SmsTextAnalyzer
+{
+    /** Number of alphabets that are analyzed, indexed by SmsDcs.ALPHABET_*. */
+    private static final int N_ALPHABETS = 3;
+
+    /** Size of a national language shift UDH element, in octets. */
+    private static final int SHIFT_UDH_OCTETS = 3;
+
+    /**
+     * National language table combinations that are tried, as pairs of
+     * (locking shift, single shift). On a tie the first one wins, so the
+     * combinations with the smallest UDH come first.
+     */
+    private static final int[] NATIONAL_LANGUAGES = {
+            SmsConstants.NATIONAL_LANGUAGE_NONE, SmsConstants.NATIONAL_LANGUAGE_TURKISH,
+            SmsConstants.NATIONAL_LANGUAGE_NONE, SmsConstants.NATIONAL_LANGUAGE_SPANISH,
+            SmsConstants.NATIONAL_LANGUAGE_NONE, SmsConstants.NATIONAL_LANGUAGE_PORTUGUESE,
+            SmsConstants.NATIONAL_LANGUAGE_TURKISH, SmsConstants.NATIONAL_LANGUAGE_NONE,
+            SmsConstants.NATIONAL_LANGUAGE_PORTUGUESE, SmsConstants.NATIONAL_LANGUAGE_NONE,
+            SmsConstants.NATIONAL_LANGUAGE_TURKISH, SmsConstants.NATIONAL_LANGUAGE_TURKISH,
+            SmsConstants.NATIONAL_LANGUAGE_PORTUGUESE, SmsConstants.NATIONAL_LANGUAGE_PORTUGUESE};
+
+    /** Index of the length in the result of calculate(). */
+    public static final int RESULT_LENGTH = 0;
+    /** Index of the number of PDUs in the result of calculate(). */
+    public static final int RESULT_SEGMENTS = 1;
+    /** Index of the space left in the last PDU in the result of calculate(). */
+    public static final int RESULT_REMAINING = 2;
+    /** Size of the result array of calculate(). */
+    public static final int RESULT_SIZE = 3;
+
+    private final int[] length_ = new int[N_ALPHABETS];
+    private final int[] segments_ = new int[N_ALPHABETS];
+    private final int[] result_ = new int[RESULT_SIZE];
+    private int lockingShift_;
+    private int singleShift_;
+
+    /**
+     * Creates an analyzer.
+     */
+    public SmsTextAnalyzer()
+    {
+        // Empty
+    }
+
+    /**
+     * Calculates the size of a text in one alphabet without encoding it.
+     * <p>
+     * The text is scanned once and nothing is allocated, so this can be
+     * called for every key press. GSM uses the default alphabet and the
+     * extension table. The result is stored in result:<br>
+     * - RESULT_LENGTH - number of septets (GSM) or octets<br>
+     * - RESULT_SEGMENTS - number of PDUs, the same as getPdus() gives<br>
+     * - RESULT_REMAINING - septets, octets (8-bit) or UCS2 chars that can be
+     *   added before another PDU is needed<br>
+     * All three are -1 if the text can't be encoded in the alphabet.
+     *
+     * @param text The text
+     * @param alphabet ALPHABET_GSM, ALPHABET_8BIT or ALPHABET_UCS2
+     * @param udhLength Size of the UDH elements that will be sent with the
+     * text, as returned by SmsUdhUtil.getTotalSize()
+     * @param result Where to store the result, at least RESULT_SIZE long
+     * @return Number of PDUs, -1 if the text can't be encoded
+     */
+    public static int calculate(CharSequence text, int alphabet, int udhLength, int[] result)
+    {
+        switch (alphabet)
+        {
+        case SmsDcs.ALPHABET_GSM:
+            return calculateGsm(text, udhLength, SmsPduUtil.getLookup(SmsConstants.NATIONAL_LANGUAGE_NONE,
+                    SmsConstants.NATIONAL_LANGUAGE_NONE), result);
+
+        case SmsDcs.ALPHABET_8BIT:
+            return calculateOctets(text, udhLength, false, result);
+
+        case SmsDcs.ALPHABET_UCS2:
+            return calculateOctets(text, udhLength, true, result);
+
+        default:
+            throw new IllegalArgumentException("Unsupported alphabet.");
+        }
+    }
+
+    /**
+     * Analyzes the given text.
+     *
+     * @param text The text to analyze
+     * @param udhLength Size of the UDH elements that will be sent with the
+     * text, as returned by SmsUdhUtil.getTotalSize()
+     * @return this
+     */
+    public SmsTextAnalyzer analyze(CharSequence text, int udhLength)
+    {
+        length_[SmsDcs.ALPHABET_GSM] = -1;
+        segments_[SmsDcs.ALPHABET_GSM] = -1;
+        lockingShift_ = SmsConstants.NATIONAL_LANGUAGE_NONE;
+        singleShift_ = SmsConstants.NATIONAL_LANGUAGE_NONE;
+
+        analyzeGsm(text, udhLength, SmsConstants.NATIONAL_LANGUAGE_NONE, SmsConstants.NATIONAL_LANGUAGE_NONE);
+
+        if (!canEncode(SmsDcs.ALPHABET_GSM))
+        {
+            // Try the national language tables, the cheapest combination is kept
+            for (int i = 0; i < NATIONAL_LANGUAGES.length; i += 2)
+            {
+                analyzeGsm(text, udhLength, NATIONAL_LANGUAGES[i], NATIONAL_LANGUAGES[i + 1]);
+            }
+        }
+
+        calculateOctets(text, udhLength, false, result_);
+        length_[SmsDcs.ALPHABET_8BIT] = result_[RESULT_LENGTH];
+        segments_[SmsDcs.ALPHABET_8BIT] = result_[RESULT_SEGMENTS];
+
+        calculateOctets(text, udhLength, true, result_);
+        length_[SmsDcs.ALPHABET_UCS2] = result_[RESULT_LENGTH];
+        segments_[SmsDcs.ALPHABET_UCS2] = result_[RESULT_SEGMENTS];
+
+        return this;
+    }
+
+    /**
+     * Counts the septets and PDUs needed with the given tables and keeps the
+     * result if it needs fewer PDUs than the best combination found so far.
+     */
+    private void analyzeGsm(CharSequence text, int udhLength, int lockingShift, int singleShift)
+    {
+        if (lockingShift != SmsConstants.NATIONAL_LANGUAGE_NONE)
+        {
+            udhLength += SHIFT_UDH_OCTETS;
+        }
+        if (singleShift != SmsConstants.NATIONAL_LANGUAGE_NONE)
+        {
+            udhLength += SHIFT_UDH_OCTETS;
+        }
+
+        int nSegments = calculateGsm(text, udhLength, SmsPduUtil.getLookup(lockingShift, singleShift), result_);
+        if (nSegments < 0)
+        {
+            return;
+        }
+
+        int best = segments_[SmsDcs.ALPHABET_GSM];
+        if ((best < 0) || (nSegments < best))
+        {
+            length_[SmsDcs.ALPHABET_GSM] = result_[RESULT_LENGTH];
+            segments_[SmsDcs.ALPHABET_GSM] = nSegments;
+            lockingShift_ = lockingShift;
+            singleShift_ = singleShift;
+        }
+    }
+
+    /**
+     * Calculates the septets and PDUs needed with the given tables, see
+     * calculate().
+     */
+    private static int calculateGsm(CharSequence text, int udhLength, GsmAlphabetLookup lookup, int[] result)
+    {
+        int nChars = text.length();
+        int maxSeptets = (SmsConcatMessage.getMaxUdOctets(udhLength) * 8) / 7;
+        int concatCapacity = (SmsConcatMessage.getMaxConcatUdOctets(udhLength) * 8) / 7;
+        int nSeptets = 0;
+        int nSegments = 1;
+        int fill = 0;
+
+        for (int i = 0; i < nChars; i++)
+        {
+            int width = lookup.getSeptetWidth(text.charAt(i));
+            if (width == 0)
+            {
+                return setResult(result, -1, -1, -1);
+            }
+
+            // Escape sequences are never split between two PDUs
+            if (fill + width > concatCapacity)
+            {
+                nSegments++;
+                fill = 0;
+            }
+            fill += width;
+            nSeptets += width;
+        }
+
+        if (nSeptets <= maxSeptets)
+        {
+            return setResult(result, nSeptets, 1, maxSeptets - nSeptets);
+        }
+
+        return setResult(result, nSeptets, nSegments, concatCapacity - fill);
+    }
+
+    /**
+     * Calculates the octets and PDUs needed for 8-bit or UCS2, see
+     * calculate(). A surrogate pair is never split between two UCS2 PDUs.
+     */
+    private static int calculateOctets(CharSequence text, int udhLength, boolean ucs2, int[] result)
+    {
+        int nChars = text.length();
+        int unitSize = ucs2 ? 2 : 1;
+        int maxUnits = SmsConcatMessage.getMaxUdOctets(udhLength) / unitSize;
+        int perSegment = SmsConcatMessage.getMaxConcatUdOctets(udhLength) / unitSize;
+
+        if (!ucs2)
+        {
+            for (int i = 0; i < nChars; i++)
+            {
+                if (text.charAt(i) > 0xff)
+                {
+                    return setResult(result, -1, -1, -1);
+                }
+            }
+        }
+
+        if (nChars <= maxUnits)
+        {
+            return setResult(result, nChars * unitSize, 1, maxUnits - nChars);
+        }
+
+        int nSegments = 0;
+        int start = 0;
+        int lastStart = 0;
+
+        while (start < nChars)
+        {
+            int end = start + perSegment;
+            if (ucs2 && (end < nChars) && (end - 1 > start)
+                    && SmsPduUtil.isHighSurrogate(text.charAt(end - 1))
+                    && SmsPduUtil.isLowSurrogate(text.charAt(end)))
+            {
+                end--;
+            }
+            lastStart = start;
+            start = end;
+            nSegments++;
+        }
+
+        return setResult(result, nChars * unitSize, nSegments, perSegment - (nChars - lastStart));
+    }
+
+    private static int setResult(int[] result, int length, int nSegments, int remaining)
+    {
+        result[RESULT_LENGTH] = length;
+        result[RESULT_SEGMENTS] = nSegments;
+        result[RESULT_REMAINING] = remaining;
+        return nSegments;
+    }
+
+    /**
+     * Returns true if the text can be encoded in the given alphabet without
+     * losing any chars.
+     *
+     * @param alphabet ALPHABET_GSM, ALPHABET_8BIT or ALPHABET_UCS2
+     * @return true if the text can be encoded
+     */
+    public boolean canEncode(int alphabet)
+    {
+        return (length_[alphabet] >= 0);
+    }
+
+    /**
+     * Returns the length of the user data in the given alphabet.
+     *
+     * @param alphabet ALPHABET_GSM, ALPHABET_8BIT or ALPHABET_UCS2
+     * @return Number of septets (GSM) or octets, -1 if the text can't be encoded
+     */
+    public int getLength(int alphabet)
+    {
+        return length_[alphabet];
+    }
+
+    /**
+     * Returns the number of PDUs needed in the given alphabet.
+     *
+     * @param alphabet ALPHABET_GSM, ALPHABET_8BIT or ALPHABET_UCS2
+     * @return Number of PDUs, -1 if the text can't be encoded
+     */
+    public int getSegments(int alphabet)
+    {
+        return segments_[alphabet];
+    }
+
+    /**
+     * Returns the national language of the locking shift table to use with
+     * ALPHABET_GSM.
+     *
+     * @return One of SmsConstants.NATIONAL_LANGUAGE_*
+     */
+    public int getLockingShift()
+    {
+        return lockingShift_;
+    }
+
+    /**
+     * Returns the national language of the single shift table to use with
+     * ALPHABET_GSM.
+     *
+     * @return One of SmsConstants.NATIONAL_LANGUAGE_*
+     */
+    public int getSingleShift()
+    {
+        return singleShift_;
+    }
+
+    /**
+     * Returns the alphabet that needs the fewest PDUs.
+     * <p>
+     * On a tie GSM is preferred over UCS2, and UCS2 over 8-bit since many
+     * handsets don't show 8-bit messages as text.
+     *
+     * @return ALPHABET_GSM, ALPHABET_8BIT or ALPHABET_UCS2
+     */
+    public int getCheapestAlphabet()
+    {
+        int best = SmsDcs.ALPHABET_UCS2;
+
+        if (canEncode(SmsDcs.ALPHABET_8BIT)
+                && (segments_[SmsDcs.ALPHABET_8BIT] < segments_[best]))
+        {
+            best = SmsDcs.ALPHABET_8BIT;
+        }
+
+        if (canEncode(SmsDcs.ALPHABET_GSM)
+                && (segments_[SmsDcs.ALPHABET_GSM] <= segments_[best]))
+        {
+            best = SmsDcs.ALPHABET_GSM;
+        }
+
+        return best;
+    }
+}
@@ -34,13 +34,20 @@
  * ***** END LICENSE BLOCK ***** */
 package org.marre.sms;
 
-import java.io.*;
-
 /**
  * Represents a text message.
  * <p>
  * The text can be sent in unicode (max 70 chars/SMS), 8-bit (max 140 chars/SMS)
- * or GSM encoding (max 160 chars/SMS).
+ * or GSM encoding (max 160 chars/SMS). In GSM encoding chars from the
+ * extension table, like '{' and the euro sign, count as two chars.
+ * <p>
+ * GSM encoded text can use the national language tables from 3GPP TS 23.038,
+ * the shift UDH elements are then added to every SMS.
+ * <p>
+ * The user data is encoded the first time it is needed and kept until the
+ * text, dcs or national language is changed. Use
+ * SmsTextAnalyzer.calculate() to get the length and number of SMS without
+ * encoding the text.
  *
  * @author Markus Eriksson
  * @version $Id: SmsTextMessage.java 410 2006-03-13 19:48:31Z c95men $
@@ -49,6 +56,11 @@ public class SmsTextMessage extends SmsConcatMessage
 {
     private String text_;
     private SmsDcs dcs_;
+    private int lockingShift_ = SmsConstants.NATIONAL_LANGUAGE_NONE;
+    private int singleShift_ = SmsConstants.NATIONAL_LANGUAGE_NONE;
+
+    /** The encoded text, null until getUserData() is called. */
+    private volatile SmsUserData userData_;
     
     /**
      * Creates an SmsTextMessage with the given dcs.
@@ -85,13 +97,41 @@ public class SmsTextMessage extends SmsConcatMessage
     }
 
     /**
-     * Creates an SmsTextMessage with default 7Bit GSM Alphabet
+     * Creates an SmsTextMessage with the alphabet that needs the fewest SMS.
+     * <p>
+     * The default 7Bit GSM Alphabet (including the extension table) is used
+     * if possible. Otherwise the national language tables are tried, UCS2 or
+     * 8-bit is only used if the text can't be encoded in GSM or if it needs
+     * fewer SMS. See SmsTextAnalyzer.
      *
      * @param msg The message
      */
     public SmsTextMessage(String msg)
     {
-        this(msg, SmsDcs.ALPHABET_GSM, SmsDcs.MSG_CLASS_UNKNOWN);
+        this(msg, 0);
+    }
+
+    /**
+     * Creates an SmsTextMessage with the alphabet that needs the fewest SMS
+     * when sent with UDH elements of the given size.
+     * <p>
+     * Used when the text is sent together with other UDH elements, like the
+     * port of an SmsPortAddressedTextMessage.
+     *
+     * @param msg The message
+     * @param udhLength Size of the other UDH elements, as returned by
+     * SmsUdhUtil.getTotalSize()
+     */
+    protected SmsTextMessage(String msg, int udhLength)
+    {
+        SmsTextAnalyzer analyzer = new SmsTextAnalyzer().analyze((msg != null) ? msg : "", udhLength);
+        int alphabet = analyzer.getCheapestAlphabet();
+
+        setText(msg, SmsDcs.getGeneralDataCodingDcs(alphabet, SmsDcs.MSG_CLASS_UNKNOWN));
+        if (alphabet == SmsDcs.ALPHABET_GSM)
+        {
+            setNationalLanguage(analyzer.getLockingShift(), analyzer.getSingleShift());
+        }
     }
     
     /**
@@ -107,7 +147,7 @@ public class SmsTextMessage extends SmsConcatMessage
      * 
      * @param text
      */
-    public void setText(String text)
+    public synchronized void setText(String text)
     {
         if (text == null)
         {
@@ -115,6 +155,7 @@ public class SmsTextMessage extends SmsConcatMessage
         }
         
         text_ = text;
+        userData_ = null;
     }
 
     /**
@@ -122,7 +163,7 @@ public class SmsTextMessage extends SmsConcatMessage
      * 
      * @param text
      */
-    public void setText(String text, SmsDcs dcs)
+    public synchronized void setText(String text, SmsDcs dcs)
     {
         // Check input for null
         if (text == null)
@@ -137,6 +178,7 @@ public class SmsTextMessage extends SmsConcatMessage
         
         text_ = text;
         dcs_ = dcs;
+        userData_ = null;
     }
     
     /**
@@ -147,51 +189,112 @@ public class SmsTextMessage extends SmsConcatMessage
         return dcs_;
     }
 
+    /**
+     * Sets the national language tables that are used when the text is GSM
+     * encoded.
+     * 
+     * @param lockingShift National language of the locking shift table,
+     * SmsConstants.NATIONAL_LANGUAGE_NONE for the default alphabet
+     * @param singleShift National language of the single shift table,
+     * SmsConstants.NATIONAL_LANGUAGE_NONE for the extension table
+     */
+    public synchronized void setNationalLanguage(int lockingShift, int singleShift)
+    {
+        if (!SmsPduUtil.isNationalLanguageSupported(lockingShift, singleShift))
+        {
+            throw new IllegalArgumentException("Unsupported national language tables.");
+        }
+
+        lockingShift_ = lockingShift;
+        singleShift_ = singleShift;
+        userData_ = null;
+    }
+
+    /**
+     * Returns the national language of the locking shift table.
+     */
+    public int getLockingShift()
+    {
+        return lockingShift_;
+    }
+
+    /**
+     * Returns the national language of the single shift table.
+     */
+    public int getSingleShift()
+    {
+        return singleShift_;
+    }
+
     /**
      * Returns the user data.
+     * <p>
+     * The same object is returned until the message is changed, it must not
+     * be modified.
+     * 
      * @return user data
      */
     public SmsUserData getUserData()
     {
-        SmsUserData ud;
-        
-        try
+        SmsUserData ud = userData_;
+
+        if (ud == null)
+        {
+            ud = encodeUserData();
+        }
+
+        return ud;
+    }
+
+    private synchronized SmsUserData encodeUserData()
+    {
+        // Another thread may have encoded it while we waited
+        SmsUserData ud = userData_;
+        if (ud != null)
         {
-            switch (dcs_.getAlphabet())
-            {
-            case SmsDcs.ALPHABET_GSM:
-                ud = new SmsUserData(SmsPduUtil.getSeptets(text_), text_.length(), dcs_);
-                break;
-                
-            case SmsDcs.ALPHABET_8BIT:
-                ud = new SmsUserData(text_.getBytes("ISO-8859-1"), text_.length(), dcs_);
-                break;
-                
-            case SmsDcs.ALPHABET_UCS2:
-                ud = new SmsUserData(text_.getBytes("UTF-16BE"), text_.length() * 2, dcs_);
-                break;
-                
-            default:
-                ud = null;
-                break;
-            }
+            return ud;
         }
-        catch (UnsupportedEncodingException ex)
+
+        byte[] data;
+
+        switch (dcs_.getAlphabet())
         {
-            // Shouldn't happen. According to the javadoc documentation
-            // for JDK 1.3.1 the "UTF-16BE" and "ISO-8859-1" encoding
-            // are standard...
-            throw new RuntimeException(ex);
+        case SmsDcs.ALPHABET_GSM:
+            byte[] septets = SmsPduUtil.toGsmCharset(text_, lockingShift_, singleShift_);
+            byte[] packed = new byte[SmsPduUtil.getSeptetOctets(septets.length)];
+            SmsPduUtil.packSeptets(septets, 0, septets.length, packed, 0);
+            ud = new SmsUserData(packed, septets.length, dcs_);
+            break;
+
+        case SmsDcs.ALPHABET_8BIT:
+            data = new byte[SmsPduUtil.getLatin1Length(text_)];
+            ud = new SmsUserData(data, SmsPduUtil.writeLatin1(text_, data, 0), dcs_);
+            break;
+
+        case SmsDcs.ALPHABET_UCS2:
+            data = new byte[text_.length() * 2];
+            ud = new SmsUserData(data, SmsPduUtil.writeUcs2(text_, data, 0), dcs_);
+            break;
+
+        default:
+            return null;
         }
-        
+
+        userData_ = ud;
         return ud;
     }
 
     /**
-     * Returns null.
+     * Returns the national language shift elements if the text is GSM
+     * encoded with national language tables, otherwise null.
      */
     public SmsUdhElement[] getUdhElements()
     {
-        return null;
+        if (dcs_.getAlphabet() != SmsDcs.ALPHABET_GSM)
+        {
+            return null;
+        }
+
+        return SmsUdhUtil.getNationalLanguageUdh(lockingShift_, singleShift_);
     }
 }
@@ -0,0 +1,430 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is "SMS Library for the Java platform".
+ *
+ * The Initial Developer of the Original Code is Markus Eriksson.
+ * Portions created by the Initial Developer are Copyright (C) 2002
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.marre.sms;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Walks the information elements of a received UDH in place.
+ * <p>
+ * The cursor reads the UDH where it is, in a byte array or a ByteBuffer,
+ * and gives the IEI, offset and length of each element. Nothing is
+ * allocated per element and one cursor can be reset to any number of
+ * UDHs. The typed accessors read the fields of the current element and
+ * may only be called when the matching is*() method returns true.
+ * <pre>
+ * SmsUdhCursor cursor = new SmsUdhCursor().reset(udh, 0);
+ * while (cursor.next())
+ * {
+ *     if (cursor.isConcat())
+ *     {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * A malformed element, one that doesn't fit in the UDH, ends the walk.
+ */
+public final class SmsUdhCursor
+{
+    private byte[] data_;
+    private ByteBuffer buffer_;
+    private int end_;
+
+    private int iei_;
+    private int offset_;
+    private int length_;
+    /** Position of the next element. */
+    private int next_;
+
+    /**
+     * Creates a cursor, call reset() before next().
+     */
+    public SmsUdhCursor()
+    {
+        // Empty
+    }
+
+    /**
+     * Starts a walk of a UDH in a byte array.
+     *
+     * @param udh Array with the UDH, may be null
+     * @param offset Position of the UDHL octet, negative if there isn't
+     * any UDH
+     * @return this
+     */
+    public SmsUdhCursor reset(byte[] udh, int offset)
+    {
+        data_ = udh;
+        buffer_ = null;
+
+        if ((udh == null) || (offset < 0) || (offset >= udh.length))
+        {
+            return resetEmpty();
+        }
+
+        return reset(offset, udh.length);
+    }
+
+    /**
+     * Starts a walk of a UDH in a ByteBuffer. The position of the buffer
+     * isn't changed.
+     *
+     * @param udh Buffer with the UDH, may be null
+     * @param index Absolute position of the UDHL octet, negative if there
+     * isn't any UDH
+     * @return this
+     */
+    public SmsUdhCursor reset(ByteBuffer udh, int index)
+    {
+        data_ = null;
+        buffer_ = udh;
+
+        if ((udh == null) || (index < 0) || (index >= udh.limit()))
+        {
+            return resetEmpty();
+        }
+
+        return reset(index, udh.limit());
+    }
+
+    private SmsUdhCursor reset(int offset, int limit)
+    {
+        next_ = offset + 1;
+        end_ = Math.min(next_ + get(offset), limit);
+        iei_ = -1;
+        offset_ = next_;
+        length_ = 0;
+        return this;
+    }
+
+    private SmsUdhCursor resetEmpty()
+    {
+        next_ = 0;
+        end_ = 0;
+        iei_ = -1;
+        offset_ = 0;
+        length_ = 0;
+        return this;
+    }
+
+    private int get(int pos)
+    {
+        return ((data_ != null) ? data_[pos] : buffer_.get(pos)) & 0xff;
+    }
+
+    /**
+     * Moves to the next element.
+     *
+     * @return false if there are no more elements
+     */
+    public boolean next()
+    {
+        if (next_ + 2 > end_)
+        {
+            iei_ = -1;
+            return false;
+        }
+
+        int iei = get(next_);
+        int length = get(next_ + 1);
+        int offset = next_ + 2;
+
+        if (offset + length > end_)
+        {
+            // Malformed, don't go on
+            next_ = end_;
+            iei_ = -1;
+            return false;
+        }
+
+        iei_ = iei;
+        offset_ = offset;
+        length_ = length;
+        next_ = offset + length;
+        return true;
+    }
+
+    /**
+     * Moves to the next element with the given IEI.
+     *
+     * @param iei One of SmsConstants.UDH_IEI_*
+     * @return false if there are no more such elements
+     */
+    public boolean next(int iei)
+    {
+        while (next())
+        {
+            if (iei_ == iei)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the IEI of the current element.
+     *
+     * @return The IEI, -1 before the first or after the last element
+     */
+    public int getIei()
+    {
+        return iei_;
+    }
+
+    /**
+     * Returns the position of the data of the current element.
+     *
+     * @return Offset in the array or buffer given to reset()
+     */
+    public int getOffset()
+    {
+        return offset_;
+    }
+
+    /**
+     * Returns the length of the data of the current element.
+     *
+     * @return Number of octets, not including the IEI and length octets
+     */
+    public int getLength()
+    {
+        return length_;
+    }
+
+    /**
+     * Returns an octet of the data of the current element.
+     *
+     * @param index Index in the data, 0 is the first octet after the
+     * length octet
+     * @return The octet, 0-255
+     */
+    public int getOctet(int index)
+    {
+        if ((index < 0) || (index >= length_))
+        {
+            throw new IndexOutOfBoundsException("Index " + index + " in IE of length " + length_);
+        }
+        return get(offset_ + index);
+    }
+
+    /**
+     * Returns true if the current element is an 8-bit or 16-bit concat
+     * element.
+     *
+     * @return true for a concat element
+     */
+    public boolean isConcat()
+    {
+        return ((iei_ == SmsConstants.UDH_IEI_CONCATENATED_8BIT) && (length_ == 3))
+                || ((iei_ == SmsConstants.UDH_IEI_CONCATENATED_16BIT) && (length_ == 4));
+    }
+
+    /**
+     * Returns true if the current element is a 16-bit concat element.
+     *
+     * @return true for a 16-bit concat element
+     */
+    public boolean isConcat16Bit()
+    {
+        return (iei_ == SmsConstants.UDH_IEI_CONCATENATED_16BIT) && (length_ == 4);
+    }
+
+    /**
+     * Returns the reference number of a concat element.
+     *
+     * @return 0-255 or 0-65535
+     */
+    public int getConcatRef()
+    {
+        return isConcat16Bit() ? ((get(offset_) << 8) | get(offset_ + 1)) : get(offset_);
+    }
+
+    /**
+     * Returns the number of parts of a concat element.
+     *
+     * @return The number of parts
+     */
+    public int getConcatTotal()
+    {
+        return get(offset_ + length_ - 2);
+    }
+
+    /**
+     * Returns the sequence number of a concat element.
+     *
+     * @return The sequence number, the first part is 1
+     */
+    public int getConcatSeq()
+    {
+        return get(offset_ + length_ - 1);
+    }
+
+    /**
+     * Returns true if the current element is an 8-bit or 16-bit application
+     * port element.
+     *
+     * @return true for a port element
+     */
+    public boolean isPort()
+    {
+        return ((iei_ == SmsConstants.UDH_IEI_APP_PORT_8BIT) && (length_ == 2))
+                || ((iei_ == SmsConstants.UDH_IEI_APP_PORT_16BIT) && (length_ == 4));
+    }
+
+    /**
+     * Returns the destination port of a port element.
+     *
+     * @return The port
+     */
+    public int getDestinationPort()
+    {
+        return (length_ == 4) ? ((get(offset_) << 8) | get(offset_ + 1)) : get(offset_);
+    }
+
+    /**
+     * Returns the originator port of a port element.
+     *
+     * @return The port
+     */
+    public int getOriginatorPort()
+    {
+        return (length_ == 4) ? ((get(offset_ + 2) << 8) | get(offset_ + 3)) : get(offset_ + 1);
+    }
+
+    /**
+     * Returns true if the current element is a special message indication,
+     * as created by SmsUdhUtil.getMessageWaitingUdh().
+     *
+     * @return true for a special message element
+     */
+    public boolean isSpecialMessage()
+    {
+        return (iei_ == SmsConstants.UDH_IEI_SPECIAL_MESSAGE) && (length_ == 2);
+    }
+
+    /**
+     * Returns the message type of a special message element.
+     *
+     * @return One of SmsConstants.UISM_MSG_WAITING_*
+     */
+    public int getSpecialMessageType()
+    {
+        return get(offset_) & 0x7f;
+    }
+
+    /**
+     * Returns true if the special message should be stored.
+     *
+     * @return true if the store bit is set
+     */
+    public boolean isSpecialMessageStored()
+    {
+        return (get(offset_) & 0x80) != 0;
+    }
+
+    /**
+     * Returns the number of waiting messages of a special message element.
+     *
+     * @return The count, 255 means 255 or more
+     */
+    public int getSpecialMessageCount()
+    {
+        return get(offset_ + 1);
+    }
+
+    /**
+     * Returns true if the current element is one of the EMS elements.
+     *
+     * @return true for UDH_IEI_EMS_TEXT_FORMATTING to
+     * UDH_IEI_EMS_COMPRESSION_CONTROL
+     */
+    public boolean isEms()
+    {
+        return (iei_ >= SmsConstants.UDH_IEI_EMS_TEXT_FORMATTING)
+                && (iei_ <= SmsConstants.UDH_IEI_EMS_COMPRESSION_CONTROL);
+    }
+
+    /**
+     * Returns the position in the text of an EMS element.
+     * <p>
+     * Text formatting, sounds, animations and pictures start with the
+     * position in the text where they belong.
+     *
+     * @return The position, -1 if the element doesn't have a position
+     */
+    public int getEmsPosition()
+    {
+        if ((iei_ >= SmsConstants.UDH_IEI_EMS_TEXT_FORMATTING)
+                && (iei_ <= SmsConstants.UDH_IEI_EMS_VARIABLE_PICTURE) && (length_ > 0))
+        {
+            return get(offset_);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of formatted chars of an EMS text formatting
+     * element.
+     *
+     * @return The length, 0 for the default formatting
+     */
+    public int getEmsFormatLength()
+    {
+        return get(offset_ + 1);
+    }
+
+    /**
+     * Returns the alignment, size and style bits of an EMS text formatting
+     * element.
+     *
+     * @return The formatting mode octet
+     */
+    public int getEmsFormat()
+    {
+        return get(offset_ + 2);
+    }
+
+    /**
+     * Returns the colours of an EMS text formatting element.
+     *
+     * @return Foreground in the low and background in the high nibble, -1
+     * if the element doesn't have colours
+     */
+    public int getEmsColor()
+    {
+        return (length_ >= 4) ? get(offset_ + 3) : -1;
+    }
+}
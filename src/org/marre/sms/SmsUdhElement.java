@@ -38,25 +38,31 @@ import java.io.*;
 
 /**
  * Represents an User Data Header Element
+ * <p>
+ * Elements are immutable and can be shared between messages and pdus. The
+ * data array given to the constructor is used as is, it must not be
+ * modified afterwards.
  *
  * @author Markus Eriksson
  * @version $Id: SmsUdhElement.java 410 2006-03-13 19:48:31Z c95men $
  */
 public class SmsUdhElement
 {
-    protected int udhIei_;
-    protected byte[] udhIeiData_;
+    protected final int udhIei_;
+    protected final byte[] udhIeiData_;
+    private final int totalSize_;
 
     /**
      * Creates an SmsUdhElement
      *
      * @param udhIei
-     * @param udhIeiData
+     * @param udhIeiData The data, it is not copied
      */
     public SmsUdhElement(int udhIei, byte[] udhIeiData)
     {
         udhIei_ = udhIei;
         udhIeiData_ = udhIeiData;
+        totalSize_ = udhIeiData.length + 2;
     }
 
     /**
@@ -67,7 +73,17 @@ public class SmsUdhElement
      */
     public int getTotalSize()
     {
-        return udhIeiData_.length + 2;
+        return totalSize_;
+    }
+
+    /**
+     * Returns the IEI of this element.
+     *
+     * @return One of SmsConstants.UDH_IEI_*
+     */
+    public int getUdhIei()
+    {
+        return udhIei_;
     }
 
     /**
@@ -83,6 +99,10 @@ public class SmsUdhElement
 
     /**
      * Returns the Udh Iei Data excluding the UDH "header"
+     * <p>
+     * The returned array is the one held by this element, it must not be
+     * modified.
+     *
      * @return Data
      */
     public byte[] getUdhIeiData()
@@ -106,6 +126,23 @@ public class SmsUdhElement
         return allData;
     }
 
+    /**
+     * Writes the UDH element including UDH "header" into the given buffer
+     *
+     * @param dest Where to write the element, must have room for
+     * getTotalSize() bytes
+     * @param offset Offset in dest
+     * @return Number of bytes written
+     */
+    public int writeTo(byte[] dest, int offset)
+    {
+        dest[offset] = (byte) (udhIei_ & 0xff);
+        dest[offset + 1] = (byte) (udhIeiData_.length & 0xff);
+        System.arraycopy(udhIeiData_, 0, dest, offset + 2, udhIeiData_.length);
+
+        return totalSize_;
+    }
+
     /**
      * Writes the UDH element including UDH "header" to the given stream
      *
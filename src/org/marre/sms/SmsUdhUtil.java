@@ -34,9 +34,6 @@
  * ***** END LICENSE BLOCK ***** */
 package org.marre.sms;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-
 /**
  * Toolkit class for SmsUdhElement objects.
  *
@@ -45,6 +42,28 @@ import java.io.IOException;
  */
 public final class SmsUdhUtil
 {
+    /** Number of national languages that have a shared UDH. */
+    private static final int N_NATIONAL_LANGUAGES = 4;
+
+    /**
+     * Shared national language UDH elements, indexed by
+     * lockingShift * N_NATIONAL_LANGUAGES + singleShift.
+     */
+    private static final SmsUdhElement[][] NATIONAL_LANGUAGE_UDH =
+        new SmsUdhElement[N_NATIONAL_LANGUAGES * N_NATIONAL_LANGUAGES][];
+
+    static
+    {
+        for (int locking = 0; locking < N_NATIONAL_LANGUAGES; locking++)
+        {
+            for (int single = 0; single < N_NATIONAL_LANGUAGES; single++)
+            {
+                NATIONAL_LANGUAGE_UDH[locking * N_NATIONAL_LANGUAGES + single] =
+                    createNationalLanguageUdh(locking, single);
+            }
+        }
+    }
+
     /**
      * Constructor for SmsUdhUtil.
      */
@@ -87,28 +106,36 @@ public final class SmsUdhUtil
      */
     public static byte[] toByteArray(SmsUdhElement[] udhElements)
     {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(100);
-        
         if (udhElements == null)
         {
             return new byte[0];
         }
 
-        baos.write((byte) SmsUdhUtil.getTotalSize(udhElements));
+        byte[] udh = new byte[getTotalSize(udhElements) + 1];
+        writeTo(udhElements, udh, 0);
+        return udh;
+    }
 
-        try
-        {
-            for (int i = 0; i < udhElements.length; i++)
-            {
-                udhElements[i].writeTo(baos);
-            }
-        }
-        catch (IOException ioe)
+    /**
+     * Writes the UDH, starting with the UDHL octet, into the given buffer.
+     *
+     * @param udhElements The UDH elements
+     * @param dest Where to write the UDH, must have room for
+     * getTotalSize() + 1 bytes
+     * @param offset Offset in dest
+     * @return Number of bytes written
+     */
+    public static int writeTo(SmsUdhElement[] udhElements, byte[] dest, int offset)
+    {
+        int pos = offset;
+
+        dest[pos++] = (byte) getTotalSize(udhElements);
+        for (int i = 0; i < udhElements.length; i++)
         {
-            throw new RuntimeException(ioe);
+            pos += udhElements[i].writeTo(dest, pos);
         }
 
-        return baos.toByteArray();
+        return pos - offset;
     }
     
     /**
@@ -296,6 +323,119 @@ public final class SmsUdhUtil
         return new SmsUdhElement(SmsConstants.UDH_IEI_CONCATENATED_16BIT, udh);
     }
 
+    /**
+     * Creates a "National Language Single Shift" UDH element using
+     * UDH_IEI_NATIONAL_SINGLE_SHIFT.
+     * <p>
+     * Escape sequences in GSM encoded text are decoded using the single shift
+     * table of the given language instead of the extension table. The element
+     * must be contained in every segment of a concatenated SM.
+     *
+     * @param language National language, one of SmsConstants.NATIONAL_LANGUAGE_*
+     * @return A SmsUdhElement
+     */
+    public static SmsUdhElement getNationalLanguageSingleShiftUdh(int language)
+    {
+        byte[] udh = new byte[1];
+        udh[0] = (byte) (language & 0xff);
+
+        return new SmsUdhElement(SmsConstants.UDH_IEI_NATIONAL_SINGLE_SHIFT, udh);
+    }
+
+    /**
+     * Creates a "National Language Locking Shift" UDH element using
+     * UDH_IEI_NATIONAL_LOCKING_SHIFT.
+     * <p>
+     * GSM encoded text is decoded using the locking shift table of the given
+     * language instead of the default alphabet. The element must be contained
+     * in every segment of a concatenated SM.
+     *
+     * @param language National language, one of SmsConstants.NATIONAL_LANGUAGE_*
+     * @return A SmsUdhElement
+     */
+    public static SmsUdhElement getNationalLanguageLockingShiftUdh(int language)
+    {
+        byte[] udh = new byte[1];
+        udh[0] = (byte) (language & 0xff);
+
+        return new SmsUdhElement(SmsConstants.UDH_IEI_NATIONAL_LOCKING_SHIFT, udh);
+    }
+
+    /**
+     * Creates the UDH elements needed for the given national language tables.
+     *
+     * @param lockingShift National language of the locking shift table
+     * @param singleShift National language of the single shift table
+     * @return The UDH elements, null if no national language is used. The
+     * returned array may be shared and must not be modified.
+     */
+    public static SmsUdhElement[] getNationalLanguageUdh(int lockingShift, int singleShift)
+    {
+        if ((lockingShift >= 0) && (lockingShift < N_NATIONAL_LANGUAGES)
+                && (singleShift >= 0) && (singleShift < N_NATIONAL_LANGUAGES))
+        {
+            return NATIONAL_LANGUAGE_UDH[lockingShift * N_NATIONAL_LANGUAGES + singleShift];
+        }
+
+        return createNationalLanguageUdh(lockingShift, singleShift);
+    }
+
+    private static SmsUdhElement[] createNationalLanguageUdh(int lockingShift, int singleShift)
+    {
+        int nElements = 0;
+        if (lockingShift != SmsConstants.NATIONAL_LANGUAGE_NONE)
+        {
+            nElements++;
+        }
+        if (singleShift != SmsConstants.NATIONAL_LANGUAGE_NONE)
+        {
+            nElements++;
+        }
+
+        if (nElements == 0)
+        {
+            return null;
+        }
+
+        SmsUdhElement[] udhElements = new SmsUdhElement[nElements];
+        int i = 0;
+        if (lockingShift != SmsConstants.NATIONAL_LANGUAGE_NONE)
+        {
+            udhElements[i++] = getNationalLanguageLockingShiftUdh(lockingShift);
+        }
+        if (singleShift != SmsConstants.NATIONAL_LANGUAGE_NONE)
+        {
+            udhElements[i++] = getNationalLanguageSingleShiftUdh(singleShift);
+        }
+
+        return udhElements;
+    }
+
+    /**
+     * Joins two arrays of UDH elements.
+     *
+     * @param first The first elements, may be null
+     * @param second The elements to add after first, may be null
+     * @return The elements of both arrays, null if both are null
+     */
+    public static SmsUdhElement[] merge(SmsUdhElement[] first, SmsUdhElement[] second)
+    {
+        if (first == null)
+        {
+            return second;
+        }
+        if (second == null)
+        {
+            return first;
+        }
+
+        SmsUdhElement[] udhElements = new SmsUdhElement[first.length + second.length];
+        System.arraycopy(first, 0, udhElements, 0, first.length);
+        System.arraycopy(second, 0, udhElements, first.length, second.length);
+
+        return udhElements;
+    }
+
     /**
      * Creates a "EMS Text Formatting" UDH element.
      *
@@ -83,6 +83,16 @@ public class SmsUserData
         return length_;
     }
     
+    /**
+     * Sets the length when the data buffer is reused.
+     * 
+     * @param length The length in octets or septets
+     */
+    void setLength(int length)
+    {
+        length_ = length;
+    }
+    
     /**
      * Returns the data coding scheme.
      * 
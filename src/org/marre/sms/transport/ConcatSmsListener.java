@@ -0,0 +1,78 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is "SMS Library for the Java platform".
+ *
+ * The Initial Developer of the Original Code is Markus Eriksson.
+ * Portions created by the Initial Developer are Copyright (C) 2002
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.marre.sms.transport;
+
+import org.marre.sms.SmsConcatReassembler;
+import org.marre.sms.SmsPdu;
+
+/**
+ * IncomingSmsListener that puts concatenated messages back together.
+ * <p>
+ * The pdus of a message are passed to the given listener once all of them
+ * have arrived. IncomingSmsListener doesn't give the originator, so parts
+ * are only matched on the concat reference number.
+ */
+public class ConcatSmsListener implements IncomingSmsListener
+{
+    private final SmsConcatReassembler<SmsPdu> reassembler_;
+
+    /**
+     * Creates a listener.
+     *
+     * @param listener Receives the pdus of each message
+     * @param timeout Time in ms to wait for the rest of a message
+     * @param maxPendingBytes Max size of the user data of all pending pdus
+     */
+    public ConcatSmsListener(SmsConcatReassembler.Listener<SmsPdu> listener, long timeout, int maxPendingBytes)
+    {
+        reassembler_ = new SmsConcatReassembler<SmsPdu>(listener, timeout, maxPendingBytes);
+    }
+
+    public void incomingSms(SmsPdu smsPdu)
+    {
+        int size = (smsPdu.getUserData() != null) ? smsPdu.getUserData().getData().length : 0;
+        reassembler_.add(null, smsPdu.getUserDataHeaders(), smsPdu, size);
+    }
+
+    /**
+     * Returns the reassembler used by this listener.
+     *
+     * @return The reassembler
+     */
+    public SmsConcatReassembler<SmsPdu> getReassembler()
+    {
+        return reassembler_;
+    }
+}
@@ -0,0 +1,322 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is "SMS Library for the Java platform".
+ *
+ * The Initial Developer of the Original Code is Markus Eriksson.
+ * Portions created by the Initial Developer are Copyright (C) 2002
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.marre.sms.transport.gsm;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.marre.sms.SmsAddress;
+import org.marre.sms.SmsConcatMessage;
+import org.marre.sms.SmsException;
+import org.marre.sms.SmsMessage;
+import org.marre.sms.SmsPdu;
+import org.marre.sms.SmsPduIterator;
+
+/**
+ * Segments and encodes many messages in parallel.
+ * <p>
+ * The messages are split into one contiguous range per task. Each task
+ * encodes its range into its own arena without any locking, and the arenas
+ * are then put after each other in one GsmPduArena. The pdus come out in
+ * the same order as the messages.
+ * <p>
+ * The messages are only read, so the same message can be given for any
+ * number of destinations. They must not be changed during the call. A
+ * message that is given once is encoded pdu by pdu. A message that repeats
+ * is segmented and encoded once into a GsmPduTemplate, the pdus for its
+ * other destinations are then made by patching in the address.
+ * <p>
+ * The pdus are SMS-SUBMITs, so there is no sender address. The MS fills in
+ * the originating address.
+ * <pre>
+ * GsmBulkEncoder encoder = new GsmBulkEncoder(executor);
+ * GsmPduArena arena = encoder.encode(messages, destinations);
+ * for (int i = 0; i &lt; arena.getPduCount(); i++)
+ * {
+ *     send(arena.getData(), arena.getOffset(i), arena.getLength(i));
+ * }
+ * </pre>
+ */
+public class GsmBulkEncoder
+{
+    /** Fewer messages than this per task are encoded in the calling thread. */
+    private static final int MIN_MESSAGES_PER_TASK = 64;
+
+    /** Max number of messages each task remembers to find repeats. */
+    private static final int MAX_TRACKED_MESSAGES = 1024;
+
+    private final ExecutorService executor_;
+    private final int nTasks_;
+
+    /**
+     * Creates an encoder that splits the work in one task per processor.
+     *
+     * @param executor Runs the tasks
+     */
+    public GsmBulkEncoder(ExecutorService executor)
+    {
+        this(executor, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an encoder.
+     *
+     * @param executor Runs the tasks
+     * @param nTasks Max number of tasks to split the work in
+     */
+    public GsmBulkEncoder(ExecutorService executor, int nTasks)
+    {
+        if (executor == null)
+        {
+            throw new IllegalArgumentException("executor cannot be null.");
+        }
+        if (nTasks < 1)
+        {
+            throw new IllegalArgumentException("nTasks must be at least 1.");
+        }
+
+        executor_ = executor;
+        nTasks_ = nTasks;
+    }
+
+    /**
+     * Segments and encodes the given messages.
+     *
+     * @param messages The messages
+     * @param destinations Destination of each message, same length as
+     * messages
+     * @return The encoded pdus
+     * @throws SmsException If a message can't be encoded
+     */
+    public GsmPduArena encode(SmsMessage[] messages, SmsAddress[] destinations)
+        throws SmsException
+    {
+        if (messages.length != destinations.length)
+        {
+            throw new IllegalArgumentException("messages and destinations must have the same length.");
+        }
+
+        return encode(messages, null, destinations);
+    }
+
+    /**
+     * Segments and encodes one message for many destinations.
+     *
+     * @param message The message
+     * @param destinations The destinations
+     * @return The encoded pdus, the message index is the index of the
+     * destination
+     * @throws SmsException If the message can't be encoded
+     */
+    public GsmPduArena encode(SmsMessage message, SmsAddress[] destinations)
+        throws SmsException
+    {
+        return encode(null, new GsmPduTemplate(message), destinations);
+    }
+
+    /**
+     * Encodes messages[i] or the shared template for each destination.
+     */
+    private GsmPduArena encode(SmsMessage[] messages, GsmPduTemplate template,
+            SmsAddress[] destinations)
+        throws SmsException
+    {
+        int nMessages = destinations.length;
+        int nTasks = Math.min(nTasks_, nMessages / MIN_MESSAGES_PER_TASK);
+
+        if (nTasks <= 1)
+        {
+            return encode(messages, template, destinations, 0, nMessages);
+        }
+
+        List<Future<GsmPduArena>> futures = new ArrayList<Future<GsmPduArena>>(nTasks);
+
+        for (int i = 0; i < nTasks; i++)
+        {
+            int start = (int) ((long) nMessages * i / nTasks);
+            int end = (int) ((long) nMessages * (i + 1) / nTasks);
+            futures.add(executor_.submit(new EncodeTask(messages, template, destinations, start, end)));
+        }
+
+        GsmPduArena[] arenas = new GsmPduArena[nTasks];
+
+        try
+        {
+            for (int i = 0; i < nTasks; i++)
+            {
+                arenas[i] = futures.get(i).get();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            cancel(futures);
+            Thread.currentThread().interrupt();
+            throw new SmsException("Interrupted while encoding", ex);
+        }
+        catch (ExecutionException ex)
+        {
+            cancel(futures);
+            if (ex.getCause() instanceof SmsException)
+            {
+                throw (SmsException) ex.getCause();
+            }
+            throw new SmsException("Failed to encode", ex.getCause());
+        }
+
+        return GsmPduArena.concat(arenas);
+    }
+
+    private static void cancel(List<Future<GsmPduArena>> futures)
+    {
+        for (int i = 0; i < futures.size(); i++)
+        {
+            futures.get(i).cancel(true);
+        }
+    }
+
+    /**
+     * Encodes a range of the messages into a new arena.
+     *
+     * @param messages The messages, null if template is given
+     * @param template Template used for all destinations, null if messages
+     * is given
+     */
+    static GsmPduArena encode(SmsMessage[] messages, GsmPduTemplate template,
+            SmsAddress[] destinations, int start, int end)
+        throws SmsException
+    {
+        GsmPduArena arena = new GsmPduArena(end - start);
+
+        if (template != null)
+        {
+            for (int i = start; i < end; i++)
+            {
+                arena.encode(template, destinations[i], i);
+            }
+            return arena;
+        }
+
+        // A message maps to null the first time it is seen, and to its
+        // template once it repeats
+        Map<SmsMessage, GsmPduTemplate> templates = new IdentityHashMap<SmsMessage, GsmPduTemplate>();
+        SmsPdu reuse = new SmsPdu();
+
+        for (int i = start; i < end; i++)
+        {
+            GsmPduTemplate pdus = templates.get(messages[i]);
+
+            if ((pdus == null) && templates.containsKey(messages[i]))
+            {
+                pdus = new GsmPduTemplate(messages[i]);
+                templates.put(messages[i], pdus);
+            }
+
+            if (pdus != null)
+            {
+                arena.encode(pdus, destinations[i], i);
+            }
+            else
+            {
+                if (templates.size() >= MAX_TRACKED_MESSAGES)
+                {
+                    templates.clear();
+                }
+                templates.put(messages[i], null);
+                encode(arena, messages[i], destinations[i], i, reuse);
+            }
+        }
+
+        return arena;
+    }
+
+    /**
+     * Encodes the pdus of a message one by one into the arena.
+     */
+    private static void encode(GsmPduArena arena, SmsMessage message, SmsAddress destination,
+            int messageIndex, SmsPdu reuse)
+        throws SmsException
+    {
+        if (message instanceof SmsConcatMessage)
+        {
+            // Segment without allocating a pdu per segment
+            SmsPduIterator pdus = ((SmsConcatMessage) message).getPduIterator(destination);
+            while (pdus.hasNext())
+            {
+                arena.encode(pdus.next(reuse), destination, messageIndex);
+            }
+        }
+        else
+        {
+            SmsPdu[] pdus = message.getPdus();
+            for (int j = 0; j < pdus.length; j++)
+            {
+                arena.encode(pdus[j], destination, messageIndex);
+            }
+        }
+    }
+
+    /**
+     * Encodes one range of messages.
+     */
+    private static class EncodeTask implements Callable<GsmPduArena>
+    {
+        private final SmsMessage[] messages_;
+        private final GsmPduTemplate template_;
+        private final SmsAddress[] destinations_;
+        private final int start_;
+        private final int end_;
+
+        EncodeTask(SmsMessage[] messages, GsmPduTemplate template, SmsAddress[] destinations,
+                int start, int end)
+        {
+            messages_ = messages;
+            template_ = template;
+            destinations_ = destinations;
+            start_ = start;
+            end_ = end;
+        }
+
+        public GsmPduArena call() throws SmsException
+        {
+            return encode(messages_, template_, destinations_, start_, end_);
+        }
+    }
+}
@@ -34,19 +34,19 @@
  * ***** END LICENSE BLOCK ***** */
 package org.marre.sms.transport.gsm;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import org.marre.sms.SmsAddress;
 import org.marre.sms.SmsDcs;
 import org.marre.sms.SmsException;
 import org.marre.sms.SmsPdu;
-import org.marre.sms.SmsPduUtil;
 import org.marre.sms.SmsUserData;
 
 /**
  * Builds GSM pdu encoded messages.
+ * <p>
+ * The TPDU is written in one pass into a ByteBuffer. A buffer of
+ * MAX_PDU_LENGTH octets can be reused for every pdu.
  * 
  * @todo Add support for validity period.
  *
@@ -55,6 +55,9 @@ import org.marre.sms.SmsUserData;
  */
 public final class GsmEncoder
 {
+    /** Max size of an encoded SMS-SUBMIT TPDU, in octets. */
+    public static final int MAX_PDU_LENGTH = 176;
+
     private GsmEncoder()
     {
         // Utility class
@@ -72,286 +75,214 @@ public final class GsmEncoder
     public static byte[] encodePdu(SmsPdu pdu, SmsAddress destination, SmsAddress sender)
         throws SmsException
     {
-        switch (pdu.getDcs().getAlphabet()) {
-        case SmsDcs.ALPHABET_GSM:
-            return encodeSeptetPdu(pdu, destination, sender);
-         
-        default:
-            return encodeOctetPdu(pdu, destination, sender);
-        }
+        byte[] data = new byte[getPduLength(pdu, destination)];
+        encodePdu(pdu, destination, sender, ByteBuffer.wrap(data));
+        return data;
     }
-    
+
     /**
-     * Encodes an septet encoded pdu.
+     * Encodes the given sms pdu into a gsm sms pdu at the position of the
+     * given buffer.
+     * <p>
+     * The position of the buffer is moved past the written pdu. Nothing is
+     * written if the pdu doesn't fit.
      * 
-     * @param pdu
-     * @param destination
-     * @param sender
-     * @return
-     * @throws SmsException
+     * @param pdu The pdu to encode
+     * @param destination Destination address
+     * @param sender Not used, the MS sets the originating address
+     * @param out Where to write the pdu, a buffer with MAX_PDU_LENGTH octets
+     * remaining is always large enough
+     * @return Number of octets written
+     * @throws SmsException Thrown if the pdu doesn't fit in the buffer
      */
-    private static byte[] encodeSeptetPdu(SmsPdu pdu, SmsAddress destination, SmsAddress sender)
+    public static int encodePdu(SmsPdu pdu, SmsAddress destination, SmsAddress sender, ByteBuffer out)
         throws SmsException
     {
-        SmsUserData userData = pdu.getUserData();
-        byte[] ud = userData.getData();
-        byte[] udh = pdu.getUserDataHeaders();
+        int length = getPduLength(pdu, destination);
 
-        int nUdSeptets = userData.getLength();
-        int nUdBits = 0;
+        if (out.remaining() < length)
+        {
+            throw new SmsException("Buffer too small for pdu, " + length + " octets needed.");
+        }
 
+        SmsUserData userData = pdu.getUserData();
+        byte[] udh = pdu.getUserDataHeaders();
         int nUdhBytes = (udh == null) ? 0 : udh.length;
+        boolean septets = (pdu.getDcs().getAlphabet() == SmsDcs.ALPHABET_GSM);
 
-        // UDH + UDHL
-        int nUdhBits = 0;
+        // UDH?
+        if (nUdhBytes == 0)
+        {
+            // TP-Message-Type-Indicator = SUBMIT
+            // TP-Reject-Duplicates = ON
+            // TP-Validity-Period-Format = No field
+            // TP-Status-Report-Request = No
+            // TP-User-Data-Header = No
+            // TP-Reply-Path = No
+            out.put((byte) 0x01);
+        }
+        else
+        {
+            // TP-Message-Type-Indicator = SUBMIT
+            // TP-Reject-Duplicates = ON
+            // TP-Validity-Period-Format = No field
+            // TP-Status-Report-Request = No
+            // TP-User-Data-Header = Yes
+            // TP-Reply-Path = No
+            out.put((byte) 0x41);
+        }
 
-        // UD + UDH + UDHL
-        int nTotalBytes = 0;
-        int nTotalBits = 0;
-        int nTotalSeptets = 0;
+        // TP-Message-Reference
+        // Leave to 0x00, MS will set it
+        out.put((byte) 0x00);
 
-        int nFillBits = 0;
+        // 2-12 octets
+        // TP-DA
+        // - 1:st octet - length of address (4 bits)
+        // - 2:nd octet
+        //   - myBit 7 - always 1
+        //   - myBit 4-6 - TON
+        //   - myBit 0-3 - NPI
+        // - n octets - BCD
+        writeDestinationAddress(out, destination);
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(161);
+        // TP-PID
+        out.put((byte) 0x00);
 
-        try
-        {
-            // UDH?
-            if (nUdhBytes == 0)
-            {
-                // TP-Message-Type-Indicator = SUBMIT
-                // TP-Reject-Duplicates = ON
-                // TP-Validity-Period-Format = No field
-                // TP-Status-Report-Request = No
-                // TP-User-Data-Header = No
-                // TP-Reply-Path = No
-                baos.write(0x01);
-            }
-            else
-            {
-                // +1 is for the UDHL
-                nUdhBits = nUdhBytes * 8;
-
-                if ( (nUdhBits % 7) > 0 )
-                {
-                    nFillBits = 7 - (nUdhBits % 7);
-                }
+        // TP-DCS
+        // UCS, septets, language, SMS class...
+        out.put(pdu.getDcs().getValue());
 
-                // TP-Message-Type-Indicator = SUBMIT
-                // TP-Reject-Duplicates = ON
-                // TP-Validity-Period-Format = No field
-                // TP-Status-Report-Request = No
-                // TP-User-Data-Header = Yes
-                // TP-Reply-Path = No
-                baos.write(0x41);
-            }
+        // TP-VP - Optional
+        // Probably not needed
 
-            nUdBits = nUdSeptets * 7;
+        if (septets)
+        {
+            int nFillBits = getFillBits(nUdhBytes);
+            int nUdBits = userData.getLength() * 7;
 
-            nTotalBits = nUdBits + nFillBits + nUdhBits;
-            nTotalSeptets = nTotalBits / 7;
+            // TP-UDL
+            // UDL includes the UDHL, UDH and fill bits, in septets
+            out.put((byte) ((nUdhBytes * 8 + nFillBits + nUdBits) / 7));
 
-            nTotalBytes = nTotalBits / 8;
-            if (nTotalBits % 8 > 0)
+            // TP-UDH (including user data header length)
+            if (nUdhBytes > 0)
             {
-                nTotalBytes += 1;
+                out.put(udh);
             }
 
-            // TP-Message-Reference
-            // Leave to 0x00, MS will set it
-            baos.write(0x00);
-
-            // 2-12 octets
-            // TP-DA
-            // - 1:st octet - length of address (4 bits)
-            // - 2:nd octet
-            //   - myBit 7 - always 1
-            //   - myBit 4-6 - TON
-            //   - myBit 0-3 - NPI
-            // - n octets - BCD
-            writeDestinationAddress(baos, destination);
-
-            // TP-PID
-            baos.write(0x00);
-
-            // TP-DCS
-            // UCS, septets, language, SMS class...
-            baos.write(pdu.getDcs().getValue());
+            // TP-UD
+            writeSeptets(out, userData.getData(), nUdBits, nFillBits);
+        }
+        else
+        {
+            int nUdBytes = userData.getLength();
 
-            // TP-VP - Optional
-            // Probably not needed
+            // TP-UDL
+            // UDL includes the UDHL and UDH
+            out.put((byte) (nUdhBytes + nUdBytes));
 
-            // UDH?
-            if ((udh == null) || (udh.length == 0))
+            // TP-UDH (including user data header length)
+            if (nUdhBytes > 0)
             {
-                // TP-UDL
-                baos.write(nUdSeptets);
-
-                // TP-UD
-                baos.write(ud);
+                out.put(udh);
             }
-            else
-            {
-                // The whole UD PDU
-                byte[] fullUd = new byte[nTotalBytes];
-
-                // TP-UDL
-                // UDL includes the length of the UDHL
-                baos.write(nTotalSeptets);
-
-                // TP-UDH (including user data header length)
-                System.arraycopy(udh, 0, fullUd, 0, nUdhBytes);
 
-                // TP-UD
-                SmsPduUtil.arrayCopy(ud, 0, fullUd, nUdhBytes, nFillBits, nUdBits);
-
-                baos.write(fullUd);
-            }
-            baos.close();
-        }
-        catch (IOException ex)
-        {
-            throw new SmsException(ex);
+            // TP-UD
+            out.put(userData.getData(), 0, nUdBytes);
         }
 
-        return baos.toByteArray();
+        return length;
     }
 
     /**
-     * Encodes an octet encoded sms pdu.
+     * Calculates the size of the encoded pdu.
      * 
-     * @param pdu
-     * @param destination
-     * @param sender
-     * @return
-     * @throws SmsException
+     * @param pdu The pdu to encode
+     * @param destination Destination address
+     * @return Number of octets
      */
-    private static byte[] encodeOctetPdu(SmsPdu pdu, SmsAddress destination, SmsAddress sender)
-        throws SmsException
+    public static int getPduLength(SmsPdu pdu, SmsAddress destination)
     {
-        SmsUserData userData = pdu.getUserData();
-        byte[] ud = userData.getData();
         byte[] udh = pdu.getUserDataHeaders();
+        int nUdhBytes = (udh == null) ? 0 : udh.length;
+        int nUdBytes;
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(200);
-        
-        try
+        if (pdu.getDcs().getAlphabet() == SmsDcs.ALPHABET_GSM)
         {
-            int nUdBytes = userData.getLength();
-            int nUdhBytes = (udh == null) ? 0 : udh.length;
-            // +1 For the UDH Length
-            int tpUdl = nUdBytes + nUdhBytes + 1;
-
-            // UDH?
-            if (nUdhBytes == 0)
-            {
-                // TP-Message-Type-Indicator = SUBMIT
-                // TP-Reject-Duplicates = ON
-                // TP-Validity-Period-Format = No field
-                // TP-Status-Report-Request = No
-                // TP-User-Data-Header = No
-                // TP-Reply-Path = No
-                baos.write(0x01);
-            }
-            else
-            {
-                // TP-Message-Type-Indicator = SUBMIT
-                // TP-Reject-Duplicates = ON
-                // TP-Validity-Period-Format = No field
-                // TP-Status-Report-Request = No
-                // TP-User-Data-Header = Yes
-                // TP-Reply-Path = No
-                baos.write(0x41);
-            }
-
-            // TP-Message-Reference
-            // Leave to 0x00, MS will set it
-            baos.write(0x00);
+            int nUdBits = pdu.getUserData().getLength() * 7;
+            nUdBytes = (getFillBits(nUdhBytes) + nUdBits + 7) / 8;
+        }
+        else
+        {
+            nUdBytes = pdu.getUserData().getLength();
+        }
 
-            // 2-12 octets
-            // TP-DA
-            // - 1:st octet - length of address (4 bits)
-            // - 2:nd octet
-            //   - myBit 7 - always 1
-            //   - myBit 4-6 - TON
-            //   - myBit 0-3 - NPI
-            // - n octets - BCD
-            writeDestinationAddress(baos, destination);
+        // First octet, TP-MR, TP-DA, TP-PID, TP-DCS, TP-UDL, TP-UD
+        return 2 + destination.getEncodedLength() + 3 + nUdhBytes + nUdBytes;
+    }
 
-            // TP-PID
-            baos.write(0x00);
+    /**
+     * Returns the number of fill bits needed to start the septets on a
+     * septet boundary after the UDH.
+     * 
+     * @param nUdhBytes Size of the UDH, including UDHL
+     * @return Number of fill bits
+     */
+    private static int getFillBits(int nUdhBytes)
+    {
+        int nUdhBits = nUdhBytes * 8;
+        return ((nUdhBits % 7) > 0) ? 7 - (nUdhBits % 7) : 0;
+    }
 
-            // TP-DCS
-            baos.write(pdu.getDcs().getValue());
+    /**
+     * Writes packed septets shifted by the given number of fill bits.
+     * 
+     * @param out Where to write
+     * @param ud The packed septets
+     * @param nUdBits Number of bits to write from ud
+     * @param nFillBits Number of zero bits to write before ud
+     */
+    private static void writeSeptets(ByteBuffer out, byte[] ud, int nUdBits, int nFillBits)
+    {
+        int nUdBytes = (nUdBits + 7) / 8;
 
-            // 1 octet/ 7 octets
-            // TP-VP - Optional
+        if (nFillBits == 0)
+        {
+            out.put(ud, 0, nUdBytes);
+            return;
+        }
 
-            // UDH?
-            if (nUdhBytes == 0)
+        int rest = 0;
+        for (int i = 0; i < nUdBytes; i++)
+        {
+            int bits = ud[i] & 0xff;
+            if (i == nUdBytes - 1)
             {
-                // 1 Integer
-                // TP-UDL
-                // UDL includes the length of UDH
-                baos.write(nUdBytes);
-
-                // n octets
-                // TP-UD
-                baos.write(ud);
+                // Only the used bits of the last octet
+                bits &= 0xff >> (nUdBytes * 8 - nUdBits);
             }
-            else
-            {
-                // The whole UD PDU without the header length byte
-                byte[] fullUd = new byte[nUdBytes + nUdhBytes];
-
-                // TP-UDL includes the length of UDH
-                // +1 is for the size header...
-                baos.write(nUdBytes + nUdhBytes);
-
-                // TP-UDH (including user data header length)
-                System.arraycopy(udh, 0, fullUd, 0, nUdhBytes);
-                // TP-UD
-                System.arraycopy(ud, 0, fullUd, nUdhBytes, nUdBytes);
 
-                baos.write(fullUd);
-            }
-            baos.close();
+            rest |= bits << nFillBits;
+            out.put((byte) rest);
+            rest >>>= 8;
         }
-        catch (IOException ex)
+
+        if (nFillBits + nUdBits > nUdBytes * 8)
         {
-            throw new SmsException(ex);
+            out.put((byte) rest);
         }
-        
-        return baos.toByteArray();
     }
-    
+
     /**
-     * Writes a destination address to the given stream in the correct format
+     * Writes a destination address to the given buffer in the correct format
      *
-     * @param os Stream to write to
+     * @param out Buffer to write to
      * @param destination Destination address to encode
-     * @throws IOException Thrown if failing to write to the stream
      */
-    private static void writeDestinationAddress(OutputStream os, SmsAddress destination)
-        throws IOException
+    private static void writeDestinationAddress(ByteBuffer out, SmsAddress destination)
     {
-        String address = destination.getAddress();
-        int ton = destination.getTypeOfNumber();
-        int npi = destination.getNumberingPlanIdentification();
-
-        // trim leading + from address
-        if (address.charAt(0) == '+')
-        {
-            address = address.substring(1);
-        }
-
-        // Length in semi octets
-        os.write(address.length());
-
-        // Type Of Address
-        os.write(0x80 | ton << 4 | npi);
-
-        // BCD encode
-        SmsPduUtil.writeBcdNumber(os, address);
+        // The address is encoded once by SmsAddress
+        destination.writeTo(out);
     }    
 }
@@ -0,0 +1,300 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is "SMS Library for the Java platform".
+ *
+ * The Initial Developer of the Original Code is Markus Eriksson.
+ * Portions created by the Initial Developer are Copyright (C) 2002
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.marre.sms.transport.gsm;
+
+import java.nio.ByteBuffer;
+
+import org.marre.sms.SmsAddress;
+import org.marre.sms.SmsException;
+import org.marre.sms.SmsPdu;
+
+/**
+ * Encoded pdus stored back to back in one byte array.
+ * <p>
+ * Each pdu is described by its offset and length in the array and the
+ * index of the message it belongs to, as given to GsmBulkEncoder. The pdus
+ * of a message are stored in order, and the messages in the order they
+ * were given.
+ */
+public final class GsmPduArena
+{
+    private static final int INITIAL_PDUS = 16;
+
+    private byte[] data_;
+    private ByteBuffer buffer_;
+    private int[] offsets_;
+    private int[] lengths_;
+    private int[] messageIndexes_;
+    private int nPdus_;
+
+    /**
+     * Creates an empty arena.
+     *
+     * @param nPdus Expected number of pdus
+     */
+    GsmPduArena(int nPdus)
+    {
+        nPdus = Math.max(nPdus, INITIAL_PDUS);
+        data_ = new byte[nPdus * GsmEncoder.MAX_PDU_LENGTH / 2];
+        buffer_ = ByteBuffer.wrap(data_);
+        offsets_ = new int[nPdus];
+        lengths_ = new int[nPdus];
+        messageIndexes_ = new int[nPdus];
+    }
+
+    /**
+     * Creates an arena from arrays that are already filled in.
+     */
+    private GsmPduArena(byte[] data, int[] offsets, int[] lengths, int[] messageIndexes, int nPdus)
+    {
+        data_ = data;
+        offsets_ = offsets;
+        lengths_ = lengths;
+        messageIndexes_ = messageIndexes;
+        nPdus_ = nPdus;
+    }
+
+    /**
+     * Encodes a pdu at the end of the arena.
+     *
+     * @param pdu The pdu
+     * @param destination Destination address
+     * @param messageIndex Index of the message the pdu belongs to
+     * @throws SmsException If the pdu can't be encoded
+     */
+    void encode(SmsPdu pdu, SmsAddress destination, int messageIndex)
+        throws SmsException
+    {
+        ensureCapacity();
+        int offset = buffer_.position();
+        int length = GsmEncoder.encodePdu(pdu, destination, null, buffer_);
+        add(offset, length, messageIndex);
+    }
+
+    /**
+     * Encodes all pdus of a template at the end of the arena.
+     *
+     * @param template The message
+     * @param destination Destination address
+     * @param messageIndex Index of the message the pdus belong to
+     * @throws SmsException If a pdu can't be encoded
+     */
+    void encode(GsmPduTemplate template, SmsAddress destination, int messageIndex)
+        throws SmsException
+    {
+        int refNr = template.nextRef(destination);
+
+        for (int i = 0; i < template.getPduCount(); i++)
+        {
+            ensureCapacity();
+            int offset = buffer_.position();
+            int length = template.encodePdu(i, destination, refNr, buffer_);
+            add(offset, length, messageIndex);
+        }
+    }
+
+    /**
+     * Makes room for one more pdu.
+     */
+    private void ensureCapacity()
+    {
+        if (buffer_.remaining() < GsmEncoder.MAX_PDU_LENGTH)
+        {
+            int offset = buffer_.position();
+            byte[] data = new byte[Math.max(data_.length * 2, offset + GsmEncoder.MAX_PDU_LENGTH)];
+            System.arraycopy(data_, 0, data, 0, offset);
+            data_ = data;
+            buffer_ = ByteBuffer.wrap(data_);
+            buffer_.position(offset);
+        }
+    }
+
+    /**
+     * Adds a pdu that has been written into the array at the given offset.
+     */
+    private void add(int offset, int length, int messageIndex)
+    {
+        if (nPdus_ == offsets_.length)
+        {
+            int size = nPdus_ * 2;
+            offsets_ = grow(offsets_, size);
+            lengths_ = grow(lengths_, size);
+            messageIndexes_ = grow(messageIndexes_, size);
+        }
+
+        offsets_[nPdus_] = offset;
+        lengths_[nPdus_] = length;
+        messageIndexes_[nPdus_] = messageIndex;
+        nPdus_++;
+    }
+
+    private static int[] grow(int[] array, int size)
+    {
+        int[] grown = new int[size];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * Returns the number of bytes used.
+     */
+    private int getSize()
+    {
+        return (nPdus_ == 0) ? 0 : offsets_[nPdus_ - 1] + lengths_[nPdus_ - 1];
+    }
+
+    /**
+     * Puts arenas after each other in one new arena.
+     *
+     * @param arenas The arenas, in order
+     * @return A new arena with all pdus
+     */
+    static GsmPduArena concat(GsmPduArena[] arenas)
+    {
+        int size = 0;
+        int nPdus = 0;
+
+        for (int i = 0; i < arenas.length; i++)
+        {
+            size += arenas[i].getSize();
+            nPdus += arenas[i].nPdus_;
+        }
+
+        byte[] data = new byte[size];
+        int[] offsets = new int[nPdus];
+        int[] lengths = new int[nPdus];
+        int[] messageIndexes = new int[nPdus];
+        int pos = 0;
+        int pdu = 0;
+
+        for (int i = 0; i < arenas.length; i++)
+        {
+            GsmPduArena arena = arenas[i];
+
+            System.arraycopy(arena.data_, 0, data, pos, arena.getSize());
+            System.arraycopy(arena.lengths_, 0, lengths, pdu, arena.nPdus_);
+            System.arraycopy(arena.messageIndexes_, 0, messageIndexes, pdu, arena.nPdus_);
+            for (int j = 0; j < arena.nPdus_; j++)
+            {
+                offsets[pdu + j] = pos + arena.offsets_[j];
+            }
+
+            pos += arena.getSize();
+            pdu += arena.nPdus_;
+        }
+
+        return new GsmPduArena(data, offsets, lengths, messageIndexes, nPdus);
+    }
+
+    /**
+     * Returns the number of pdus.
+     *
+     * @return Number of pdus
+     */
+    public int getPduCount()
+    {
+        return nPdus_;
+    }
+
+    /**
+     * Returns the array that holds all pdus.
+     * <p>
+     * The array may be larger than the pdus, use the offsets and lengths.
+     *
+     * @return The array
+     */
+    public byte[] getData()
+    {
+        return data_;
+    }
+
+    /**
+     * Returns the offset of a pdu.
+     *
+     * @param index Index of the pdu, 0 to getPduCount() - 1
+     * @return Offset in getData()
+     */
+    public int getOffset(int index)
+    {
+        checkIndex(index);
+        return offsets_[index];
+    }
+
+    /**
+     * Returns the length of a pdu.
+     *
+     * @param index Index of the pdu, 0 to getPduCount() - 1
+     * @return Length in octets
+     */
+    public int getLength(int index)
+    {
+        checkIndex(index);
+        return lengths_[index];
+    }
+
+    /**
+     * Returns the message a pdu belongs to.
+     *
+     * @param index Index of the pdu, 0 to getPduCount() - 1
+     * @return Index of the message, as given to GsmBulkEncoder
+     */
+    public int getMessageIndex(int index)
+    {
+        checkIndex(index);
+        return messageIndexes_[index];
+    }
+
+    /**
+     * Returns a copy of a pdu.
+     *
+     * @param index Index of the pdu, 0 to getPduCount() - 1
+     * @return The encoded pdu
+     */
+    public byte[] getPdu(int index)
+    {
+        checkIndex(index);
+        byte[] pdu = new byte[lengths_[index]];
+        System.arraycopy(data_, offsets_[index], pdu, 0, pdu.length);
+        return pdu;
+    }
+
+    private void checkIndex(int index)
+    {
+        if ((index < 0) || (index >= nPdus_))
+        {
+            throw new IndexOutOfBoundsException("Index " + index + ", pdu count " + nPdus_);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is "SMS Library for the Java platform".
+ *
+ * The Initial Developer of the Original Code is Markus Eriksson.
+ * Portions created by the Initial Developer are Copyright (C) 2002
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.marre.sms.transport.gsm;
+
+import java.nio.ByteBuffer;
+
+import org.marre.sms.SmsAddress;
+import org.marre.sms.SmsConcatMessage;
+import org.marre.sms.SmsConstants;
+import org.marre.sms.SmsException;
+import org.marre.sms.SmsMessage;
+import org.marre.sms.SmsPdu;
+
+/**
+ * A message that is segmented and encoded once, for sending to many
+ * recipients.
+ * <p>
+ * Only TP-DA differs between the pdus of different recipients. The
+ * template keeps everything after TP-DA of each pdu. A recipient's pdu is
+ * the first octet and TP-MR, the encoded destination address and the
+ * cached rest. A concatenated message gets a new reference number from
+ * SmsConcatMessage.getDefaultRefAllocator() for each recipient, patched
+ * into the concat element.
+ * <p>
+ * A template is immutable and can be used by many threads at once.
+ */
+public final class GsmPduTemplate
+{
+    /** Position of the concat reference number after TP-DA: PID, DCS, UDL, UDHL, IEI and length. */
+    private static final int REF_OFFSET = 6;
+
+    /** First octet of each pdu. */
+    private final byte[] firstOctets_;
+    /** Everything after TP-DA of each pdu. */
+    private final byte[][] tails_;
+
+    private final boolean concat_;
+    private final boolean wideRef_;
+
+    /**
+     * Segments and encodes the given message.
+     *
+     * @param message The message
+     * @throws SmsException If the message can't be encoded
+     */
+    public GsmPduTemplate(SmsMessage message) throws SmsException
+    {
+        SmsPdu[] pdus = message.getPdus();
+        // Any address will do, only the part after it is kept
+        SmsAddress dummy = new SmsAddress("0");
+        ByteBuffer buffer = ByteBuffer.allocate(GsmEncoder.MAX_PDU_LENGTH);
+        int headLength = 2 + dummy.getEncodedLength();
+
+        firstOctets_ = new byte[pdus.length];
+        tails_ = new byte[pdus.length][];
+
+        for (int i = 0; i < pdus.length; i++)
+        {
+            buffer.clear();
+            int length = GsmEncoder.encodePdu(pdus[i], dummy, null, buffer);
+
+            firstOctets_[i] = buffer.get(0);
+            tails_[i] = new byte[length - headLength];
+            buffer.position(headLength);
+            buffer.get(tails_[i]);
+        }
+
+        byte[] udh = pdus[0].getUserDataHeaders();
+        int iei = ((udh != null) && (udh.length > 1)) ? udh[1] : -1;
+
+        // The concat element is always the first one
+        concat_ = (pdus.length > 1)
+                && ((iei == SmsConstants.UDH_IEI_CONCATENATED_8BIT) || (iei == SmsConstants.UDH_IEI_CONCATENATED_16BIT));
+        wideRef_ = (iei == SmsConstants.UDH_IEI_CONCATENATED_16BIT);
+    }
+
+    /**
+     * Returns the number of pdus of the message.
+     *
+     * @return Number of pdus
+     */
+    public int getPduCount()
+    {
+        return tails_.length;
+    }
+
+    /**
+     * Returns the size of an encoded pdu.
+     *
+     * @param index Index of the pdu
+     * @param destination Destination address
+     * @return Size in octets
+     */
+    public int getPduLength(int index, SmsAddress destination)
+    {
+        return 2 + destination.getEncodedLength() + tails_[index].length;
+    }
+
+    /**
+     * Allocates the concat reference number for a recipient.
+     *
+     * @param destination Destination address
+     * @return The reference number to give encodePdu() for all pdus to this
+     * recipient, 0 if the message isn't concatenated
+     */
+    public int nextRef(SmsAddress destination)
+    {
+        if (!concat_)
+        {
+            return 0;
+        }
+
+        return SmsConcatMessage.getDefaultRefAllocator().nextRef(destination, wideRef_);
+    }
+
+    /**
+     * Encodes the pdus for a recipient.
+     *
+     * @param destination Destination address
+     * @return The pdus
+     * @throws SmsException If a pdu can't be encoded
+     */
+    public byte[][] encodePdus(SmsAddress destination) throws SmsException
+    {
+        int refNr = nextRef(destination);
+        byte[][] pdus = new byte[tails_.length][];
+
+        for (int i = 0; i < pdus.length; i++)
+        {
+            pdus[i] = new byte[getPduLength(i, destination)];
+            encodePdu(i, destination, refNr, ByteBuffer.wrap(pdus[i]));
+        }
+
+        return pdus;
+    }
+
+    /**
+     * Encodes one pdu for a recipient at the position of the given buffer.
+     * <p>
+     * The position of the buffer is moved past the written pdu. Nothing is
+     * written if the pdu doesn't fit.
+     *
+     * @param index Index of the pdu
+     * @param destination Destination address
+     * @param refNr Concat reference number, as returned by nextRef()
+     * @param out Where to write the pdu
+     * @return Number of octets written
+     * @throws SmsException If the pdu doesn't fit in the buffer
+     */
+    public int encodePdu(int index, SmsAddress destination, int refNr, ByteBuffer out)
+        throws SmsException
+    {
+        int length = getPduLength(index, destination);
+
+        if (out.remaining() < length)
+        {
+            throw new SmsException("Buffer too small for pdu, " + length + " octets needed.");
+        }
+
+        // TP-MTI etc, TP-MR and TP-DA
+        out.put(firstOctets_[index]);
+        out.put((byte) 0x00);
+        destination.writeTo(out);
+
+        int tail = out.position();
+        out.put(tails_[index]);
+
+        if (concat_)
+        {
+            if (wideRef_)
+            {
+                out.put(tail + REF_OFFSET, (byte) (refNr >> 8));
+                out.put(tail + REF_OFFSET + 1, (byte) refNr);
+            }
+            else
+            {
+                out.put(tail + REF_OFFSET, (byte) refNr);
+            }
+        }
+
+        return length;
+    }
+}
@@ -34,6 +34,8 @@
  * ***** END LICENSE BLOCK ***** */
 package org.marre.util;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 /**
@@ -47,6 +49,27 @@ public final class StringUtil
 
     private static Random rnd_ = new Random();
 
+    /** Uppercase hex digits as ASCII, indexed by nibble value. */
+    private static final byte[] HEX_DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    /** Nibble value of the ASCII hex digits (both cases), -1 for all other chars. */
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static
+    {
+        for (int i = 0; i < HEX_VALUES.length; i++)
+        {
+            HEX_VALUES[i] = -1;
+        }
+
+        for (int i = 0; i < HEX_DIGITS.length; i++)
+        {
+            HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+            HEX_VALUES[Character.toLowerCase((char) HEX_DIGITS[i])] = (byte) i;
+        }
+    }
+
     /**
      * This class isn't intended to be instantiated.
      */
@@ -84,19 +107,10 @@ public final class StringUtil
      */
     public static String bytesToHexString(byte[] data)
     {
-        StringBuffer hexStrBuff = new StringBuffer(data.length * 2);
+        char[] hex = new char[data.length * 2];
+        writeHex(data, 0, data.length, hex, 0);
 
-        for (int i = 0; i < data.length; i++)
-        {
-            String hexByteStr = Integer.toHexString(data[i] & 0xff).toUpperCase();
-            if (hexByteStr.length() == 1)
-            {
-                hexStrBuff.append("0");
-            }
-            hexStrBuff.append(hexByteStr);
-        }
-
-        return hexStrBuff.toString();
+        return new String(hex);
     }
 
     /**
@@ -108,16 +122,7 @@ public final class StringUtil
      */
     public static String byteToHexString(byte data)
     {
-        StringBuffer hexStrBuff = new StringBuffer(2);
-
-        String hexByteStr = Integer.toHexString(data & 0xff).toUpperCase();
-        if (hexByteStr.length() == 1)
-        {
-            hexStrBuff.append("0");
-        }
-        hexStrBuff.append(hexByteStr);
-
-        return hexStrBuff.toString();
+        return new String(new char[] {(char) HEX_DIGITS[(data >> 4) & 0x0f], (char) HEX_DIGITS[data & 0x0f]});
     }
 
     /**
@@ -126,18 +131,187 @@ public final class StringUtil
      * @param hexString
      *            The hex string to read
      * @return the resulting byte array
+     * @throws NumberFormatException
+     *             if the string contains a char that isn't a hex digit
      */
     public static byte[] hexStringToBytes(String hexString)
     {
         byte[] data = new byte[hexString.length() / 2];
+        readHex(hexString, 0, data.length, data, 0);
+
+        return data;
+    }
+
+    /**
+     * Writes bytes as uppercase hex digits in ASCII.
+     * 
+     * @param data
+     *            Data to convert
+     * @param offset
+     *            Offset of the first byte in data
+     * @param length
+     *            Number of bytes to convert
+     * @param dest
+     *            Where to write the hex digits, two per byte
+     * @param destOffset
+     *            Offset in dest
+     * @return Number of bytes written to dest
+     */
+    public static int writeHex(byte[] data, int offset, int length, byte[] dest, int destOffset)
+    {
+        int d = destOffset;
 
-        for (int i = 0; i < data.length; i++)
+        for (int i = offset; i < offset + length; i++)
         {
-            String a = hexString.substring(i * 2, i * 2 + 2);
-            data[i] = (byte) Integer.parseInt(a, 16);
+            dest[d++] = HEX_DIGITS[(data[i] >> 4) & 0x0f];
+            dest[d++] = HEX_DIGITS[data[i] & 0x0f];
         }
 
-        return data;
+        return d - destOffset;
+    }
+
+    /**
+     * Writes bytes as uppercase hex digits in ASCII at the position of the
+     * buffer. The position is moved past the written digits.
+     * 
+     * @param data
+     *            Data to convert
+     * @param offset
+     *            Offset of the first byte in data
+     * @param length
+     *            Number of bytes to convert
+     * @param dest
+     *            Where to write the hex digits, two per byte
+     * @return Number of bytes written to dest
+     */
+    public static int writeHex(byte[] data, int offset, int length, ByteBuffer dest)
+    {
+        int nHex = length * 2;
+
+        if (dest.hasArray())
+        {
+            int pos = dest.position();
+            if (dest.remaining() < nHex)
+            {
+                throw new BufferOverflowException();
+            }
+            writeHex(data, offset, length, dest.array(), dest.arrayOffset() + pos);
+            dest.position(pos + nHex);
+        }
+        else
+        {
+            for (int i = offset; i < offset + length; i++)
+            {
+                dest.put(HEX_DIGITS[(data[i] >> 4) & 0x0f]);
+                dest.put(HEX_DIGITS[data[i] & 0x0f]);
+            }
+        }
+
+        return nHex;
+    }
+
+    /**
+     * Writes bytes as uppercase hex digits.
+     * 
+     * @param data
+     *            Data to convert
+     * @param offset
+     *            Offset of the first byte in data
+     * @param length
+     *            Number of bytes to convert
+     * @param dest
+     *            Where to write the hex digits, two per byte
+     * @param destOffset
+     *            Offset in dest
+     * @return Number of chars written to dest
+     */
+    public static int writeHex(byte[] data, int offset, int length, char[] dest, int destOffset)
+    {
+        int d = destOffset;
+
+        for (int i = offset; i < offset + length; i++)
+        {
+            dest[d++] = (char) HEX_DIGITS[(data[i] >> 4) & 0x0f];
+            dest[d++] = (char) HEX_DIGITS[data[i] & 0x0f];
+        }
+
+        return d - destOffset;
+    }
+
+    /**
+     * Reads bytes from hex digits in ASCII. Both upper and lowercase digits
+     * are accepted.
+     * 
+     * @param hex
+     *            The hex digits, two per byte
+     * @param offset
+     *            Offset of the first digit in hex
+     * @param length
+     *            Number of bytes to read
+     * @param dest
+     *            Where to write the bytes
+     * @param destOffset
+     *            Offset in dest
+     * @return Number of bytes written to dest
+     * @throws NumberFormatException
+     *             if a char isn't a hex digit
+     */
+    public static int readHex(byte[] hex, int offset, int length, byte[] dest, int destOffset)
+    {
+        int s = offset;
+
+        for (int i = destOffset; i < destOffset + length; i++)
+        {
+            int high = hexValue(hex[s++] & 0xff);
+            int low = hexValue(hex[s++] & 0xff);
+            dest[i] = (byte) ((high << 4) | low);
+        }
+
+        return length;
+    }
+
+    /**
+     * Reads bytes from hex digits. Both upper and lowercase digits are
+     * accepted.
+     * 
+     * @param hex
+     *            The hex digits, two per byte
+     * @param offset
+     *            Offset of the first digit in hex
+     * @param length
+     *            Number of bytes to read
+     * @param dest
+     *            Where to write the bytes
+     * @param destOffset
+     *            Offset in dest
+     * @return Number of bytes written to dest
+     * @throws NumberFormatException
+     *             if a char isn't a hex digit
+     */
+    public static int readHex(CharSequence hex, int offset, int length, byte[] dest, int destOffset)
+    {
+        int s = offset;
+
+        for (int i = destOffset; i < destOffset + length; i++)
+        {
+            int high = hexValue(hex.charAt(s++));
+            int low = hexValue(hex.charAt(s++));
+            dest[i] = (byte) ((high << 4) | low);
+        }
+
+        return length;
+    }
+
+    private static int hexValue(int ch)
+    {
+        int value = (ch < HEX_VALUES.length) ? HEX_VALUES[ch] : -1;
+
+        if (value < 0)
+        {
+            throw new NumberFormatException("Not a hex digit: '" + (char) ch + "'");
+        }
+
+        return value;
     }
 
     /**
@@ -15,6 +15,8 @@ The Initial Developer of the Original Code is Cool & Groovy Toy Company Ltd.
 
 package uk.toy;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 /**
@@ -30,24 +32,52 @@ import java.util.List;
  */
 public class AT {
 
-	// RESPONSES
-	private static final String REPLY_OK = "\r\nOK\r\n";
-	private static final String REPLY_ERROR = "\r\nERROR\r\n";
-	private static final String REPLY_MANUFACTURER = "\r\n\"Sony Ericsson\"\r\n\r\nOK\r\n";
-	private static final String REPLY_MODEL = "\r\nUnknown\r\nOK\r\n";
-	private static final String REPLY_MESSAGE_STORE = "+CPMS:0,10\r\nOK\r\n";
-	private static final String REPLY_GET_MESSAGE = "+CMGR:";
+	// RESPONSES, encoded once
+	private static final byte[][] REPLY_OK = reply("\r\nOK\r\n");
+	private static final byte[][] REPLY_ERROR = reply("\r\nERROR\r\n");
+	private static final byte[][] REPLY_MANUFACTURER = reply("\r\n\"Sony Ericsson\"\r\n\r\nOK\r\n");
+	private static final byte[][] REPLY_MODEL = reply("\r\nUnknown\r\nOK\r\n");
+	// +CPMS:<used>,<total>
+	private static final byte[] REPLY_MESSAGE_STORE = ATDispatcher.ascii("+CPMS:");
+	private static final byte[] REPLY_MESSAGE_STORE_END = ATDispatcher.ascii("\r\nOK\r\n");
+	// the store has no real limit, but never report less than the toy
+	// used to see
+	private static final int MIN_MESSAGE_STORE_SIZE = 10;
+	// +CMGR reply before the PDU:
+	// message has been read.
+	// no data for second field. this would usually contain the name from the phone book
+	// for the message sender
+	// number of octets, followed by CRLF
+	private static final byte[] REPLY_GET_MESSAGE = ATDispatcher.ascii("+CMGR:1,,");
+	// +CMGR reply after the PDU
+	private static final byte[] REPLY_GET_MESSAGE_END = ATDispatcher.ascii("\r\n\r\nOK\r\n");
+	// +CMGL:<index>,<stat>,,<length> before each PDU
+	private static final byte[] REPLY_LIST_MESSAGE = ATDispatcher.ascii("+CMGL:");
+	private static final byte[][] REPLY_LIST_STAT = { ATDispatcher.ascii(",0,,"),
+			ATDispatcher.ascii(",1,,") };
+	private static final byte[][] REPLY_LIST_SUPPORTED = reply("\r\n+CMGL:(0-4)\r\n\r\nOK\r\n");
+	private static final byte[] COMMA = ATDispatcher.ascii(",");
+	private static final byte[] CRLF = ATDispatcher.ascii("\r\n");
+	// <stat> values of AT+CMGL in PDU mode
+	private static final int STAT_REC_UNREAD = 0;
+	private static final int STAT_REC_READ = 1;
+	private static final int STAT_ALL = 4;
 	// QUERIES
 	private static final String ECHO_OFF = "ATE0";
 	private static final String GET_MANUFACTURER = "AT+CGMI";
 	private static final String GET_MODEL = "AT+CGMM";
 	private static final String SET_MESSAGE_STORAGE = "AT+CPMS";
 	private static final String GET_MESSAGE = "AT+CMGR=";
+	private static final String LIST_MESSAGES = "AT+CMGL";
 	
 	//TODO: if echo is on, we'd need to echo commands
 	// but I do not want to track state here
 	
 	List<ToyMessage> list;
+	// messages the toy has read with AT+CMGR or AT+CMGL, by index.
+	// only used on the reader thread
+	private final BitSet read = new BitSet();
+	private final ATDispatcher dispatcher;
 	/**
 	 * Default Constructor
 	 * 
@@ -55,6 +85,24 @@ public class AT {
 	 */
 	public AT(List<ToyMessage> messageQueue) {
 		this.list = messageQueue;
+		// base case
+		this.dispatcher = new ATDispatcher(new FixedReply(REPLY_OK, false), REPLY_ERROR);
+		this.dispatcher.register(ECHO_OFF, new FixedReply(REPLY_OK, true));
+		this.dispatcher.register(GET_MANUFACTURER, new FixedReply(REPLY_MANUFACTURER, true));
+		this.dispatcher.register(GET_MODEL, new FixedReply(REPLY_MODEL, true));
+		this.dispatcher.register(SET_MESSAGE_STORAGE, new MessageStorage());
+		this.dispatcher.register(GET_MESSAGE, new GetMessage());
+		this.dispatcher.register(LIST_MESSAGES, new ListMessages());
+	}
+	
+	/**
+	 * Registers a handler for another command.
+	 * 
+	 * @param prefix Command prefix, see {@link ATDispatcher#register}
+	 * @param handler The handler
+	 */
+	public void register(String prefix, ATDispatcher.CommandHandler handler) {
+		this.dispatcher.register(prefix, handler);
 	}
 	
 	// NOTE: Toy asks AT+CGMI=2,1
@@ -67,50 +115,148 @@ public class AT {
 	 * The answer can then be sent to the device.
 	 * 
 	 * @param command command to be handled
+	 * @return the answer as ASCII segments
+	 */
+	public byte[][] handleCommand(String command) {
+		byte[] line = ATDispatcher.ascii(command);
+		return this.handleCommand(line, 0, line.length);
+	}
+	
+	/**
+	 * Handles an AT command straight from the receive buffer.
+	 * 
+	 * @param line buffer holding the command, without CR/LF
+	 * @param offset index of the first byte of the command
+	 * @param length length of the command
+	 * @return the answer as ASCII segments, ERROR if the command is malformed
+	 */
+	public byte[][] handleCommand(byte[] line, int offset, int length) {
+		return this.dispatcher.dispatch(line, offset, length);
+	}
+	
+	/**
+	 * Answers a command with a constant reply.
+	 * 
+	 * An exact command only gets the reply without any parameters,
+	 * otherwise it is answered with OK like unknown commands.
 	 */
-	public String handleCommand(String command) {
+	private static class FixedReply implements ATDispatcher.CommandHandler {
+		private final byte[][] reply;
+		private final boolean exact;
+		
+		FixedReply(byte[][] reply, boolean exact) {
+			this.reply = reply;
+			this.exact = exact;
+		}
+		
+		@Override
+		public byte[][] handle(byte[] line, int argStart, int end) {
+			if (this.exact && argStart != end) {
+				return REPLY_OK;
+			}
+			return this.reply;
+		}
+	}
 	
-		if (command.equals(ECHO_OFF)) {
-			return REPLY_OK;
-		} else if (command.equals(GET_MANUFACTURER)) {
-			return REPLY_MANUFACTURER;
-		} else if (command.equals(GET_MODEL)) {
-			return REPLY_MODEL;
-			// TODO: need to cache the regexen
-		} else if (command.startsWith(SET_MESSAGE_STORAGE)) {
-			return REPLY_MESSAGE_STORE;
-		} else if (command.startsWith(GET_MESSAGE)) {
-			// HACK: extract index
-			int stringIndex = command.indexOf("=");
-			if (stringIndex == -1) {
+	/**
+	 * AT+CMGR=&lt;index&gt;, returns the message at index as a PDU.
+	 */
+	private class GetMessage implements ATDispatcher.CommandHandler {
+		@Override
+		public byte[][] handle(byte[] line, int argStart, int end) {
+			int index = ATDispatcher.parseInt(line, argStart, end);
+			if (index < 0 || index >= list.size()) {
 				return REPLY_ERROR;
 			}
-			// TODO: handle numberformatexception
-			String n =  command.substring(stringIndex + 1);
-			int index = Integer.parseInt(n);
-			ToyMessage msg = this.list.get(index);
-			StringBuffer sb = new StringBuffer();
-			sb.append(REPLY_GET_MESSAGE);
-			// message has been read
-			sb.append(1);
-			sb.append(",");
-			// no data for second field. this would usually contain the name from the phone book
-			// for the message sender
-			sb.append(",");
-			// number of octets
-			// TODO: add correct value!
-			// TODO: this probably breaks for very special character > 8bit?
-			//sb.append(msg.getPDUAsString().getBytes().length);
-			sb.append("\r\n");
+			ToyMessage msg = list.get(index);
+			read.set(index);
+			// the PDU was encoded when the message was created,
+			// it is sent straight from the message
 			// TODO: is this SMS-Submit or SMS-Deliver?
-			sb.append(msg.getPDUAsString());
-			sb.append("\r\n");
-			sb.append(REPLY_OK);
-			return sb.toString();			
+			byte[] pdu = msg.wireBytes();
+			return new byte[][] { REPLY_GET_MESSAGE, tpduLength(pdu), CRLF,
+					pdu, REPLY_GET_MESSAGE_END };
 		}
-		
-		// base case
-		return REPLY_OK;
+	}
+	
+	/**
+	 * AT+CPMS, reports how many messages are stored.
+	 */
+	private class MessageStorage implements ATDispatcher.CommandHandler {
+		@Override
+		public byte[][] handle(byte[] line, int argStart, int end) {
+			int used = list.size();
+			return new byte[][] { REPLY_MESSAGE_STORE,
+					ATDispatcher.asciiDecimal(used), COMMA,
+					ATDispatcher.asciiDecimal(Math.max(used, MIN_MESSAGE_STORE_SIZE)),
+					REPLY_MESSAGE_STORE_END };
+		}
+	}
+	
+	/**
+	 * AT+CMGL[=&lt;stat&gt;], returns all messages with the given status
+	 * in one reply so the toy can fetch a backlog in one round trip.
+	 * 
+	 * stat is 0 for unread (the default), 1 for read and 4 for all
+	 * messages. Listed messages are marked read. There are no sent or
+	 * unsent messages, so 2 and 3 only give OK.
+	 */
+	private class ListMessages implements ATDispatcher.CommandHandler {
+		@Override
+		public byte[][] handle(byte[] line, int argStart, int end) {
+			int stat = STAT_REC_UNREAD;
+			if (argStart < end) {
+				if (line[argStart] != '=') {
+					return REPLY_ERROR;
+				}
+				if (end - argStart == 2 && line[argStart + 1] == '?') {
+					return REPLY_LIST_SUPPORTED;
+				}
+				stat = ATDispatcher.parseInt(line, argStart + 1, end);
+				if (stat < 0 || stat > STAT_ALL) {
+					return REPLY_ERROR;
+				}
+			}
+
+			// the list only grows, messages added from now on are left
+			// for the next listing
+			int size = list.size();
+			List<byte[]> segments = new ArrayList<byte[]>();
+			for (int i = 0; i < size; i++) {
+				boolean wasRead = read.get(i);
+				if (stat == STAT_ALL || (stat == STAT_REC_UNREAD && !wasRead)
+						|| (stat == STAT_REC_READ && wasRead)) {
+					byte[] pdu = list.get(i).wireBytes();
+					segments.add(CRLF);
+					segments.add(REPLY_LIST_MESSAGE);
+					segments.add(ATDispatcher.asciiDecimal(i));
+					segments.add(REPLY_LIST_STAT[wasRead ? STAT_REC_READ : STAT_REC_UNREAD]);
+					segments.add(tpduLength(pdu));
+					segments.add(CRLF);
+					segments.add(pdu);
+					read.set(i);
+				}
+			}
+			if (!segments.isEmpty()) {
+				segments.add(CRLF);
+			}
+			segments.add(REPLY_OK[0]);
+			return segments.toArray(new byte[segments.size()][]);
+		}
+	}
+	
+	/**
+	 * Returns the &lt;length&gt; field of +CMGR and +CMGL.
+	 * 
+	 * @param pdu PDU as hex digits, starting with the SMSC length octet
+	 * @return TPDU length in octets, without the SMSC length octet, as ASCII
+	 */
+	private static byte[] tpduLength(byte[] pdu) {
+		return ATDispatcher.asciiDecimal(pdu.length / 2 - 1);
+	}
+	
+	private static byte[][] reply(String s) {
+		return new byte[][] { ATDispatcher.ascii(s) };
 	}
 	
 }
@@ -0,0 +1,217 @@
+/*The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is copyright (c) Cool & Groovy Toy Company Ltd.
+
+The Initial Developer of the Original Code is Cool & Groovy Toy Company Ltd.
+*/
+
+package uk.toy;
+
+import android.util.Log;
+
+/**
+ *
+ * Finds the handler for an AT command line.
+ *
+ * Handlers are registered for a command prefix, e.g. "AT+CMGR=". The
+ * prefixes are kept in a trie of ASCII bytes and a line is matched
+ * straight from the receive buffer, without creating a String. The
+ * longest registered prefix wins. Letters are matched case-insensitively
+ * as the AT command set requires.
+ *
+ * Replies are arrays of byte segments which are sent one after the other.
+ * They can be constants or point into cached data like a message's wire
+ * bytes, so answering a command doesn't have to create a String.
+ *
+ * Handlers must not throw on bad input but return an ERROR reply. If
+ * one throws anyway, the dispatcher logs it and replies with ERROR so
+ * the reader thread keeps running.
+ *
+ */
+public class ATDispatcher {
+
+	/**
+	 * Handles one AT command.
+	 */
+	public interface CommandHandler {
+		/**
+		 * Handles a command line.
+		 *
+		 * @param line Buffer holding the command line
+		 * @param argStart Index of the first byte after the matched prefix
+		 * @param end Index after the last byte of the line
+		 * @return The reply segments to send to the device, they must not be
+		 *         modified
+		 */
+		byte[][] handle(byte[] line, int argStart, int end);
+	}
+
+	private static final String LOGTAG = "ATDispatcher";
+
+	// only 7-bit ASCII is used in AT commands
+	private static final int N_CHARS = 128;
+
+	private final Node root = new Node();
+	private final CommandHandler defaultHandler;
+	private final byte[][] errorReply;
+
+	/**
+	 * Creates a dispatcher without any commands.
+	 *
+	 * @param unknownCommandHandler Handles lines no prefix matches
+	 * @param error Reply used when a handler fails
+	 */
+	public ATDispatcher(CommandHandler unknownCommandHandler, byte[][] error) {
+		this.defaultHandler = unknownCommandHandler;
+		this.errorReply = error;
+	}
+
+	/**
+	 * Registers the handler for all lines starting with prefix.
+	 *
+	 * @param prefix ASCII command prefix, e.g. "AT+CGMI"
+	 * @param handler The handler, replaces any handler for the same prefix
+	 */
+	public void register(String prefix, CommandHandler handler) {
+		Node node = this.root;
+		for (int i = 0; i < prefix.length(); i++) {
+			int ch = toUpper(prefix.charAt(i));
+			if (ch >= N_CHARS) {
+				throw new IllegalArgumentException("Only ASCII allowed in prefix: " + prefix);
+			}
+			if (node.next == null) {
+				node.next = new Node[N_CHARS];
+			}
+			if (node.next[ch] == null) {
+				node.next[ch] = new Node();
+			}
+			node = node.next[ch];
+		}
+		node.handler = handler;
+	}
+
+	/**
+	 * Handles a command line.
+	 *
+	 * @param line Buffer holding the line, without CR/LF
+	 * @param offset Index of the first byte of the line
+	 * @param length Length of the line
+	 * @return The reply segments to send to the device
+	 */
+	public byte[][] dispatch(byte[] line, int offset, int length) {
+		int end = offset + length;
+		Node node = this.root;
+		CommandHandler handler = this.defaultHandler;
+		int argStart = offset;
+
+		for (int i = offset; i < end && node.next != null; i++) {
+			int ch = toUpper(line[i] & 0xff);
+			node = (ch < N_CHARS) ? node.next[ch] : null;
+			if (node == null) {
+				break;
+			}
+			if (node.handler != null) {
+				handler = node.handler;
+				argStart = i + 1;
+			}
+		}
+
+		try {
+			return handler.handle(line, argStart, end);
+		} catch (RuntimeException e) {
+			Log.e(LOGTAG, "Handler failed", e);
+			return this.errorReply;
+		}
+	}
+
+	/**
+	 * Parses a decimal parameter in place.
+	 *
+	 * @param line Buffer holding the parameter
+	 * @param start Index of the first digit
+	 * @param end Index after the last digit
+	 * @return The value, or -1 if the range is empty, holds anything but
+	 *         digits or is too large
+	 */
+	public static int parseInt(byte[] line, int start, int end) {
+		// nine digits always fit in an int
+		if (start >= end || end - start > 9) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Converts an ASCII string to bytes, for reply constants.
+	 *
+	 * @param s The string, only chars below 128
+	 * @return The ASCII bytes
+	 */
+	public static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Formats a non-negative number as ASCII digits.
+	 *
+	 * @param value The number
+	 * @return The digits
+	 */
+	public static byte[] asciiDecimal(int value) {
+		int nDigits = 1;
+		for (int v = value / 10; v > 0; v /= 10) {
+			nDigits++;
+		}
+		byte[] digits = new byte[nDigits];
+		for (int i = nDigits - 1; i >= 0; i--) {
+			digits[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return digits;
+	}
+
+	/**
+	 * Joins reply segments to a String, for logging only.
+	 *
+	 * @param reply The reply segments
+	 * @return The reply as a String
+	 */
+	public static String toString(byte[][] reply) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < reply.length; i++) {
+			for (int j = 0; j < reply[i].length; j++) {
+				sb.append((char) (reply[i][j] & 0xff));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static int toUpper(int ch) {
+		return (ch >= 'a' && ch <= 'z') ? ch - ('a' - 'A') : ch;
+	}
+
+	private static class Node {
+		Node[] next;
+		CommandHandler handler;
+	}
+}
@@ -15,13 +15,11 @@ The Initial Developer of the Original Code is Cool & Groovy Toy Company Ltd.
 
 package uk.toy;
 
-import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
-import org.marre.sms.SmsAddress;
-import org.marre.sms.SmsException;
 import org.marre.sms.SmsPduUtil;
 import org.marre.util.StringUtil;
-import android.util.Log;
 
 /**
  * 
@@ -30,92 +28,172 @@ import android.util.Log;
  * The toy receives messages in PDU format, so this class
  * provides a converter from String to PDU.
  * 
+ * A ToyMessage is immutable. The PDU is encoded once when the message
+ * is created, usually by a MessageProvider, so answering AT+CMGR only
+ * has to copy the finished bytes.
+ * 
  * @author Some Guy
  *
  */
-public class ToyMessage implements Serializable {
-
+public final class ToyMessage {
 
-	private static final long serialVersionUID = -642073213597342720L;
+	// the toy can only show a single SMS, longer messages are split
+	private static final int MAX_SEPTETS = 160;
 
-	// we need a phone number internally for PDU encoding purposes
-	private static final String phoneNumber = "01234567889";
-	// TODO: remove
-	private static SmsAddress sender;
-	
-	private static final String LOGTAG = "ToyMessage";
+	// all stolen from http://www.dreamfabric.com/sms/deliver_fo.html
+	// Implementation note: we simply encode a fixed phone number
+	// into the PDU as the toy does not care about these details
+	private static final byte[] DELIVER_HEADER = StringUtil.hexStringToBytes(
+			// length of SMSC
+			"00"
+			// first octet of SMS-deliver message
+			+ "04"
+			// address length
+			+ "0B"
+			// type-of-address of the sender number
+			+ "C8"
+			// sender number
+			+ "7238880999F1"
+			// TP-PID
+			+ "00"
+			// TP-DCS (data coding scheme)
+			+ "00"
+			// TP-SCTS (time stamp)
+			+ "99309251619580");
 
-	private String msg;
+	private final String msg;
+	private final int septetCount;
+	// the PDU as ASCII hex digits, ready to be sent to the toy
+	private final byte[] wire;
 
 	/**
 	 * 
 	 * Default constructor.
 	 * 
-	 * @param message Message to be encapsulated.
+	 * @param message Message to be encapsulated, at most 160 septets.
+	 * Use {@link #split(String)} for longer messages.
+	 * @throws IllegalArgumentException If the message is too long
 	 */
 	public ToyMessage(String message) {
+		this(message, SmsPduUtil.toGsmCharset(message));
+	}
+
+	private ToyMessage(String message, byte[] septets) {
+		this(message, septets, 0, septets.length);
+	}
+
+	private ToyMessage(String message, byte[] septets, int offset, int nSeptets) {
+		if (nSeptets > MAX_SEPTETS) {
+			throw new IllegalArgumentException("Message longer than "
+					+ MAX_SEPTETS + " septets: " + nSeptets);
+		}
 		this.msg = message;
-		try {
-			sender = new SmsAddress(phoneNumber);
-		} catch (SmsException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			Log.e(LOGTAG, "Error while instantiating SmsAddress", e);
+		this.septetCount = nSeptets;
+
+		// header, TP-UDL (number of septets) and the packed TP-UD
+		byte[] pdu = new byte[DELIVER_HEADER.length + 1
+				+ SmsPduUtil.getSeptetOctets(nSeptets)];
+		System.arraycopy(DELIVER_HEADER, 0, pdu, 0, DELIVER_HEADER.length);
+		pdu[DELIVER_HEADER.length] = (byte) nSeptets;
+		SmsPduUtil.packSeptets(septets, offset, nSeptets, pdu,
+				DELIVER_HEADER.length + 1);
+
+		this.wire = new byte[pdu.length * 2];
+		StringUtil.writeHex(pdu, 0, pdu.length, this.wire, 0);
+	}
+
+	/**
+	 * Splits a message into as many ToyMessages as the toy needs to show
+	 * all of it.
+	 * 
+	 * Each part holds at most 160 septets. Parts are only cut between
+	 * chars, so an escape sequence or a surrogate pair is never split.
+	 * 
+	 * @param message Message of any length
+	 * @return The parts in order, a single one for short messages
+	 */
+	public static List<ToyMessage> split(String message) {
+		byte[] septets = SmsPduUtil.toGsmCharset(message);
+		List<ToyMessage> parts = new ArrayList<ToyMessage>(
+				septets.length / MAX_SEPTETS + 1);
+		if (septets.length <= MAX_SEPTETS) {
+			parts.add(new ToyMessage(message, septets));
+			return parts;
+		}
+
+		int partChar = 0;
+		int partSeptet = 0;
+		int septet = 0;
+		for (int ch = 0; ch < message.length(); ch++) {
+			// each char is one septet, or an escape and one septet
+			int width = (septets[septet] == SmsPduUtil.EXT_TABLE_PREFIX) ? 2 : 1;
+			boolean pairStart = SmsPduUtil.isHighSurrogate(message.charAt(ch))
+					&& ch + 1 < message.length()
+					&& SmsPduUtil.isLowSurrogate(message.charAt(ch + 1));
+			int needed = pairStart ? width + 1 : width;
+			if (septet + needed - partSeptet > MAX_SEPTETS) {
+				parts.add(new ToyMessage(message.substring(partChar, ch),
+						septets, partSeptet, septet - partSeptet));
+				partChar = ch;
+				partSeptet = septet;
+			}
+			septet += width;
 		}
+		parts.add(new ToyMessage(message.substring(partChar), septets,
+				partSeptet, septet - partSeptet));
+		return parts;
 	}
 
 	/**
-	 * Gets septets from string message
+	 * Returns the encapsulated message.
 	 * 
-	 * @return
+	 * @return The message as given to the constructor
 	 */
-	private byte[] getPDU() {
+	public String getMessage() {
+		return this.msg;
+	}
 
-		return SmsPduUtil.getSeptets(msg);
+	/**
+	 * Returns the number of septets in the PDU.
+	 * 
+	 * @return TP-UDL, at most 160
+	 */
+	public int getSeptetCount() {
+		return this.septetCount;
 	}
-	
+
+	/**
+	 * Returns the PDU as ASCII hex digits, the way it is sent to the toy.
+	 * 
+	 * @return A copy of the wire bytes
+	 */
+	public byte[] getWireBytes() {
+		byte[] copy = new byte[this.wire.length];
+		System.arraycopy(this.wire, 0, copy, 0, this.wire.length);
+		return copy;
+	}
+
+	/**
+	 * Returns the wire bytes without copying, they must not be modified.
+	 * 
+	 * @return The wire bytes
+	 */
+	byte[] wireBytes() {
+		return this.wire;
+	}
+
 	/**
 	 * 
 	 * Returns encapsulated message properly formatted for consumption
 	 * by the toy.
 	 * 
-	 * Implementation note: we simply encode a fixed phone number
-	 * into the String as they toy does not care about these details 
-	 * 
 	 * @return Septets encoded as String to be sent to the toy
 	 */
 	public String getPDUAsString() {
-
-		byte[] septets = this.getPDU();
-		StringBuffer res = new StringBuffer();
-		
-		// all stolen from http://www.dreamfabric.com/sms/deliver_fo.html
-		// length of SMSC
-		res.append("00");
-		// first octet of SMS-deliver message
-		res.append("04");
-		// address length
-		res.append("0B");
-		// type-of-address of the sender number
-		res.append("C8");
-		// sender number
-		res.append("7238880999F1");
-		// TP-ID
-		res.append("00");
-		// TP-DCS (data coding scheme)
-		res.append("00");
-		// TP-SCTS (time stamp)
-		res.append("99309251619580");
-		// number of septets. Note: pay attention to encoding specified by TP-DCS
-		String numOfSeptets =Integer.toHexString((int) (septets.length * (8.0/7.0)));
-		if (numOfSeptets.length() < 2){
-			res.append("0");
+		char[] chars = new char[this.wire.length];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char) this.wire[i];
 		}
-		res.append(numOfSeptets);
-		
-		String tpUD = StringUtil.bytesToHexString(septets);
-		res.append(tpUD);
-		
-		return res.toString();		
+		return new String(chars);
 	}
 }
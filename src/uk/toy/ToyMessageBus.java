@@ -0,0 +1,120 @@
+/*The contents of this file are subject to the Mozilla Public License
+Version 1.1 (the "License"); you may not use this file except in
+compliance with the License. You may obtain a copy of the License at
+http://www.mozilla.org/MPL/
+
+Software distributed under the License is distributed on an "AS IS"
+basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+License for the specific language governing rights and limitations
+under the License.
+
+The Original Code is copyright (c) Cool & Groovy Toy Company Ltd.
+
+The Initial Developer of the Original Code is Cool & Groovy Toy Company Ltd.
+*/
+
+package uk.toy;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *
+ * Passes new messages from the MessageProvider to the BluetoothReader
+ * inside the process.
+ *
+ * Any number of threads may post messages. They are queued without
+ * locking and handed to the listener on the listener's executor, in the
+ * order they were posted. A drain is only scheduled when the queue goes
+ * from idle to busy, so a burst of messages costs one wake-up.
+ *
+ * Messages posted before a listener is set are kept until there is one.
+ *
+ */
+public class ToyMessageBus {
+
+	/**
+	 * Receives the messages of a ToyMessageBus.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the listener's executor for each new message.
+		 *
+		 * @param msg The message
+		 */
+		void onNewMessage(ToyMessage msg);
+	}
+
+	private final ConcurrentLinkedQueue<ToyMessage> queue = new ConcurrentLinkedQueue<ToyMessage>();
+	// true while a drain is scheduled or running
+	private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+	private final Runnable drainer = new Drainer();
+
+	private volatile Listener listener;
+	private volatile Executor executor;
+
+	/**
+	 * Sets the listener and the executor it is called on.
+	 *
+	 * @param messageListener Receives the messages
+	 * @param listenerExecutor Runs the listener, e.g. a Looper thread
+	 */
+	public void setListener(Listener messageListener, Executor listenerExecutor) {
+		if (messageListener == null || listenerExecutor == null) {
+			throw new IllegalArgumentException("listener and executor must not be null");
+		}
+		this.executor = listenerExecutor;
+		this.listener = messageListener;
+		if (!this.queue.isEmpty()) {
+			this.wakeup();
+		}
+	}
+
+	/**
+	 * Removes the listener. Later messages are queued.
+	 */
+	public void removeListener() {
+		this.listener = null;
+	}
+
+	/**
+	 * Queues a message for the listener. Can be called from any thread.
+	 *
+	 * @param msg The message
+	 */
+	public void post(ToyMessage msg) {
+		this.queue.offer(msg);
+		this.wakeup();
+	}
+
+	private void wakeup() {
+		Executor exec = this.executor;
+		if (exec != null && this.wakeupPending.compareAndSet(false, true)) {
+			try {
+				exec.execute(this.drainer);
+			} catch (RuntimeException e) {
+				// nothing was scheduled, let the next post try again
+				this.wakeupPending.set(false);
+				throw e;
+			}
+		}
+	}
+
+	private class Drainer implements Runnable {
+		@Override
+		public void run() {
+			// clear the flag first, anything posted from now on schedules
+			// a new drain
+			wakeupPending.set(false);
+			Listener l = listener;
+			if (l == null) {
+				return;
+			}
+			ToyMessage msg;
+			while ((msg = queue.poll()) != null) {
+				l.onNewMessage(msg);
+			}
+		}
+	}
+}
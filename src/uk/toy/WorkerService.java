@@ -48,6 +48,8 @@ import android.util.Log;
 public class WorkerService extends Service implements Runnable {
 
 	private MessageProvider currentProvider;
+	// passes messages from currentProvider to btrRunnable
+	private final ToyMessageBus messageBus = new ToyMessageBus();
 	private BluetoothSocket btSocket;
 	private BluetoothServerSocket btServerSocket;
 	private Thread currentProviderThread;
@@ -118,14 +120,14 @@ public class WorkerService extends Service implements Runnable {
 		// get MessageProvider
 		int id = intent.getIntExtra(Main.PREF_MESSAGEPROVIDER_KEY, -1);
 		this.currentProvider = MessageProviderFactory.getMessageProvider(id,
-				this);
+				this, this.messageBus);
 		return START_STICKY;
 	}
 
 	/**
 	 * Dispatches MessageProvider and Bluetoothtalker threads.
 	 * 
-	 * These talk to each other using intents.
+	 * These talk to each other using messageBus.
 	 */
 	@Override
 	public void run() {
@@ -147,8 +149,13 @@ public class WorkerService extends Service implements Runnable {
 		this.messageHandlerService = new ServiceHandler();
 		talker = new BluetoothWriterThread(this.messageHandlerService, this.btSocket);
 		talker.start();
+		// the reader and the message bus post to the talker right away
+		if (!talker.waitUntilReady()) {
+			Log.e(LOGTAG, "Interrupted while starting the talker thread");
+			return;
+		}
 		this.btrRunnable = new BluetoothReader(this.btSocket,
-				talker, this, this.messageHandlerService);
+				talker, this.messageBus, this.messageHandlerService);
 		this.btReaderThread = new Thread(btrRunnable);
 		this.currentProviderThread.start();
 		this.btReaderThread.start();
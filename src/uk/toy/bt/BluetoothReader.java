@@ -18,19 +18,16 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import uk.toy.AT;
+import uk.toy.ATDispatcher;
 import uk.toy.ToyMessage;
+import uk.toy.ToyMessageBus;
 import uk.toy.WorkerService;
-import uk.toy.messageproviders.MessageProvider;
 
 import android.bluetooth.BluetoothSocket;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
@@ -46,42 +43,49 @@ import android.util.Log;
  */
 public class BluetoothReader implements Runnable {
 
-	private List<ToyMessage> list = new ArrayList<ToyMessage>();
+	// written on the writer thread, read by AT on the reader thread
+	private List<ToyMessage> list = new CopyOnWriteArrayList<ToyMessage>();
 
 	private final static String LOGTAG = "BluetoothTalker";
 	private BluetoothSocket socket;
 	private BluetoothWriterThread writer;
-	private Context ctx;
-	private BroadcastReceiver rec;
+	private ToyMessageBus bus;
 	private AT at;
 	private Handler sHandler;
 	private boolean stop = false;
-
-	public BluetoothReader(BluetoothSocket btSocket, BluetoothWriterThread btTalker, Context context,
+	// AT command lines are short, anything longer is cut
+	private static final int MAX_LINE_LENGTH = 512;
+	// receive buffer, the AT commands are parsed straight from it
+	private final byte[] lineBuffer = new byte[MAX_LINE_LENGTH];
+	// +CMTI notification around the message index
+	private static final byte[] CMTI_PREFIX = ATDispatcher.ascii("\r\n+CMTI:\"SM\",");
+	private static final byte[] CRLF = ATDispatcher.ascii("\r\n");
+
+	public BluetoothReader(BluetoothSocket btSocket, BluetoothWriterThread btTalker, ToyMessageBus messageBus,
 			Handler serviceHandler) {
 		this.socket = btSocket;
 		this.writer = btTalker;
-		this.ctx = context;
+		this.bus = messageBus;
 		this.at = new AT(this.list);
 		this.sHandler = serviceHandler;
 	}
 
 	private void indicateNewMessage() {
-		String toToy = "\r\n+CMTI:\"SM\"," + (list.size() - 1) + "\r\n";
-		Log.d(LOGTAG, "Indicating new message");
-		Log.d(LOGTAG, "to toy:" + toToy);
+		byte[][] toToy = new byte[][] { CMTI_PREFIX,
+				ATDispatcher.asciiDecimal(list.size() - 1), CRLF };
+		if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+			Log.d(LOGTAG, "Indicating new message");
+			Log.d(LOGTAG, "to toy:" + ATDispatcher.toString(toToy));
+		}
 		this.writer.sendMessageToDevice(toToy);
 
 	}
 
 	@Override
 	public void run() {
-		// register broadcast listener for new messages
-		Log.d(LOGTAG, "Registering Broadcast Receiver for new messages");
-		this.rec = new NewMessageReceiver();
-		IntentFilter filter = new IntentFilter(
-				MessageProvider.ACTION_NEW_MESSAGE);
-		this.ctx.registerReceiver(this.rec, filter);
+		// listen for new messages, they are handled on the writer thread
+		Log.d(LOGTAG, "Setting listener for new messages");
+		this.bus.setListener(new NewMessageListener(), this.writer);
 
 		while (true) {
 			try {
@@ -95,7 +99,7 @@ public class BluetoothReader implements Runnable {
 					Log.d(LOGTAG, "InputStream is null!");
 					this.indicateIOFailureToService();
 				}
-				StringBuffer inputBuffer = new StringBuffer();
+				int lineLength = 0;
 				while (true) {
 					int cur = in.read();
 					if (cur == -1) {
@@ -131,15 +135,23 @@ public class BluetoothReader implements Runnable {
 					else if (cur == 10) {
 						break;
 					} else {
-						inputBuffer.appendCodePoint(cur);
+						if (lineLength < this.lineBuffer.length) {
+							this.lineBuffer[lineLength++] = (byte) cur;
+						} else {
+							Log.w(LOGTAG, "Line too long, dropping character");
+						}
 						continue;
 					}
 				}
 
-				String currentLine = inputBuffer.toString();
-				Log.d(LOGTAG, "From Device:" + currentLine);
-				String response = at.handleCommand(currentLine);
-				Log.d(LOGTAG, "To Device: " + response);
+				if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+					Log.d(LOGTAG, "From Device:"
+							+ new String(this.lineBuffer, 0, lineLength, "ISO-8859-1"));
+				}
+				byte[][] response = at.handleCommand(this.lineBuffer, 0, lineLength);
+				if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+					Log.d(LOGTAG, "To Device: " + ATDispatcher.toString(response));
+				}
 				this.writer.sendMessageToDevice(response);
 			} catch (IOException e) {
 				// calling stopThread triggers an IOException here
@@ -165,13 +177,13 @@ public class BluetoothReader implements Runnable {
 	 * Stops thread. Stops listening for messages and ceases communication with
 	 * Toy.
 	 * 
-	 * Unregisters BroadcastReceiver. Closes BluetoothSocket which will likely
+	 * Removes the message listener. Closes BluetoothSocket which will likely
 	 * trigger an IOException. Sets stop flag.
 	 * 
 	 */
 	public void stopThread() {
 		this.stop = true;
-		this.ctx.unregisterReceiver(this.rec);
+		this.bus.removeListener();
 		try {
 			this.socket.close();
 		} catch (IOException e) {
@@ -187,24 +199,17 @@ public class BluetoothReader implements Runnable {
 	}
 	
 	/**
-	 * Listens for new SMS broadcasts, usually coming from instances of
-	 * MessageProvider.
+	 * Receives new messages from the MessageProvider, usually on the
+	 * writer thread.
 	 * 
 	 * @author SomeGuy
 	 * 
 	 */
-	private class NewMessageReceiver extends BroadcastReceiver {
+	private class NewMessageListener implements ToyMessageBus.Listener {
 		@Override
-		public void onReceive(Context context, Intent intent) {
-			// TODO Auto-generated method stub
-
-			if (intent.getAction().equals(MessageProvider.ACTION_NEW_MESSAGE)) {
-				// TODO: add constant for extra key
-				list
-						.add((ToyMessage) intent
-								.getSerializableExtra(MessageProvider.EXTRA_NEW_MESSAGE));
-				indicateNewMessage();
-			}
+		public void onNewMessage(ToyMessage msg) {
+			list.add(msg);
+			indicateNewMessage();
 		}
 	}
 
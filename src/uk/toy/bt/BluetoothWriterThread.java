@@ -1,8 +1,10 @@
 package uk.toy.bt;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 
+import uk.toy.ATDispatcher;
 import uk.toy.WorkerService;
 
 import android.bluetooth.BluetoothSocket;
@@ -11,24 +13,66 @@ import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 
-public class BluetoothWriterThread extends Thread {
+public class BluetoothWriterThread extends Thread implements Executor {
 	
 	private static final String LOGTAG = "OOBMessager";
 	
 	private BluetoothSocket btSocket;	
-	private Handler handler;
+	// set on this thread once its Looper is prepared
+	private volatile Handler handler;
+	private final CountDownLatch ready = new CountDownLatch(1);
 	private Handler sHandler;
 	private Looper looper;
+	// the segments of a reply are copied here and written at once,
+	// only used on this thread
+	private byte[] sendBuffer = new byte[512];
 	
-	public void sendMessageToDevice(String stringMsg) {
+	/**
+	 * Sends a reply to the toy.
+	 * 
+	 * The segments are sent in order with a single write. They are not
+	 * copied before they are sent, so they must not be modified.
+	 * 
+	 * @param segments ASCII segments of the reply
+	 */
+	public void sendMessageToDevice(byte[][] segments) {
 		if (this.handler == null) {
 			throw new IllegalStateException("Thread not fully initialized");
 		}
 		Message message = Message.obtain();
-		message.obj = stringMsg;
+		message.obj = segments;
 		this.handler.sendMessage(message);
 	}
 	
+	/**
+	 * Runs the given task on this thread, after the messages that are
+	 * already waiting to be sent.
+	 */
+	@Override
+	public void execute(Runnable task) {
+		if (this.handler == null) {
+			throw new IllegalStateException("Thread not fully initialized");
+		}
+		this.handler.post(task);
+	}
+	
+	/**
+	 * Blocks until the thread has started and accepts messages and tasks.
+	 * 
+	 * Call it after start() and before handing the thread to others.
+	 * 
+	 * @return false if the calling thread was interrupted while waiting
+	 */
+	public boolean waitUntilReady() {
+		try {
+			this.ready.await();
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
 	public BluetoothWriterThread(Handler serviceHandler, BluetoothSocket socket) {
 		this.sHandler = serviceHandler;
 		this.btSocket = socket;
@@ -40,6 +84,7 @@ public class BluetoothWriterThread extends Thread {
 		Looper.prepare();
 		this.handler = new OOBHandler();
 		this.looper = Looper.myLooper();
+		this.ready.countDown();
 		Looper.loop();
 		System.err.println("Starting BTWriterThread: we should never get here");
 	}
@@ -56,16 +101,27 @@ public class BluetoothWriterThread extends Thread {
 			if (msg == null) {
 				Log.d(LOGTAG, "handleMessage: msg is null. BUG");
 			}
-			String actualMsg = (String) msg.obj;
-			if (actualMsg == null) {
-				Log.d(LOGTAG, "handleMessage: actualMsg is null. BUG");
+			byte[][] segments = (byte[][]) msg.obj;
+			if (segments == null) {
+				Log.d(LOGTAG, "handleMessage: segments is null. BUG");
 			}
 			try {
-				Log.d(LOGTAG, "sending " + actualMsg);
-				btSocket.getOutputStream().write(actualMsg.getBytes("ASCII"));
-			} catch (UnsupportedEncodingException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+					Log.d(LOGTAG, "sending " + ATDispatcher.toString(segments));
+				}
+				int length = 0;
+				for (int i = 0; i < segments.length; i++) {
+					length += segments[i].length;
+				}
+				if (length > sendBuffer.length) {
+					sendBuffer = new byte[Math.max(length, sendBuffer.length * 2)];
+				}
+				int pos = 0;
+				for (int i = 0; i < segments.length; i++) {
+					System.arraycopy(segments[i], 0, sendBuffer, pos, segments[i].length);
+					pos += segments[i].length;
+				}
+				btSocket.getOutputStream().write(sendBuffer, 0, length);
 			} catch (IOException e) {
 				Message ioFailMessage = sHandler.obtainMessage();
 				ioFailMessage.what = WorkerService.MESSAGE_SERVICE_IO_FAIL;
@@ -15,9 +15,9 @@ The Initial Developer of the Original Code is Cool & Groovy Toy Company Ltd.
 package uk.toy.messageproviders;
 
 import android.content.Context;
-import android.content.Intent;
 
 import uk.toy.ToyMessage;
+import uk.toy.ToyMessageBus;
 
 
 /**
@@ -25,36 +25,34 @@ import uk.toy.ToyMessage;
  * A MessageProvider is a source of messages which will be delivered to the phone.
  * 
  * A Message is a simple String. However, it must not be longer than 160 characters as
- * The Toy was developed for use with SMS messages.
+ * The Toy was developed for use with SMS messages. Longer texts are posted as
+ * several messages, see {@link uk.toy.ToyMessage#split(String)}.
  * 
- * Messages are broadcast using an intent with the {@link #ACTION_NEW_MESSAGE} action.
- * The {@link #EXTRA_NEW_MESSAGE} field will contain the {@link uk.toy.ToyMessage}
- * instance.
+ * Messages are posted as {@link uk.toy.ToyMessage} instances to the
+ * {@link uk.toy.ToyMessageBus} given to the constructor. The instance is
+ * passed on as it is, nothing is serialized.
  * 
- *  To obtain new messages from a MessageProvider instance, simply register
- *  an {@link android.content.BroadCastReceiver} with the given intent. 
+ *  To obtain new messages from a MessageProvider instance, simply set
+ *  a {@link uk.toy.ToyMessageBus.Listener} on the bus. 
  * 
  * @author Some Guy
  *
  */
 public abstract class MessageProvider implements Runnable {
 	
-	public static final String ACTION_NEW_MESSAGE = "TOY_NEW_MESSAGE";
-	public static final String EXTRA_NEW_MESSAGE = "uk.toy.TOY_NEW_MESSAGE";
 	protected Context ctx = null;
+	private final ToyMessageBus bus;
 	
-	public MessageProvider(Context context) {
+	public MessageProvider(Context context, ToyMessageBus messageBus) {
 		this.ctx = context;
+		this.bus = messageBus;
 	}
 	
 	/**
 	 * Signals arrival of new messages
 	 */
 	public void signalNewMessage(ToyMessage msg) {
-		
-		Intent i = new Intent(ACTION_NEW_MESSAGE);
-		i.putExtra(EXTRA_NEW_MESSAGE, msg);
-		this.ctx.sendBroadcast(i);
+		this.bus.post(msg);
 	}
 	
 	/**
@@ -15,6 +15,7 @@ The Initial Developer of the Original Code is Cool & Groovy Toy Company Ltd.
 package uk.toy.messageproviders;
 
 import uk.toy.Main;
+import uk.toy.ToyMessageBus;
 import android.content.Context;
 import android.util.Log;
 
@@ -35,16 +36,19 @@ public class MessageProviderFactory {
 	 * 
 	 * @param type
 	 *            MESSAGEPROVIDER constant
+	 * @param bus
+	 *            Bus the provider posts its messages to
 	 * @return MessageProvider object (or null)
 	 */
-	public static MessageProvider getMessageProvider(int type, Context ctx) {
+	public static MessageProvider getMessageProvider(int type, Context ctx,
+			ToyMessageBus bus) {
 		MessageProvider mp = null;
 		switch (type) {
 		case Main.MESSAGEPROVIDER_READ_SMS:
-			mp = new ReadSMSProvider(ctx);
+			mp = new ReadSMSProvider(ctx, bus);
 			break;
 		case Main.MESSAGEPROVIDER_UNREAD_SMS:
-			mp = new UnreadSMSProvider(ctx);
+			mp = new UnreadSMSProvider(ctx, bus);
 			break;
 		default:
 			Log.e(LOGTAG, "Unknown MessageProvider ID requested: " + type);
@@ -15,7 +15,10 @@ The Initial Developer of the Original Code is Cool & Groovy Toy Company Ltd.
 package uk.toy.messageproviders;
 
 import java.util.HashSet;
+import java.util.List;
+
 import uk.toy.ToyMessage;
+import uk.toy.ToyMessageBus;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.ContentObserver;
@@ -53,8 +56,8 @@ public class ReadSMSProvider extends MessageProvider {
 
 	private final static String LOGTAG = "ReadSMSProvider";
 	
-	public ReadSMSProvider(Context context) {
-		super(context);
+	public ReadSMSProvider(Context context, ToyMessageBus messageBus) {
+		super(context, messageBus);
 	}
 
 	@Override
@@ -137,8 +140,11 @@ public class ReadSMSProvider extends MessageProvider {
 				if (read == 1) {
 					Log.d(LOGTAG, "Got new read message!");
 					Log.d(LOGTAG, "Message is " + body);
-					ToyMessage curMsg = new ToyMessage(body);
-					signalNewMessage(curMsg);
+					// the body of a concatenated SMS can be too long for the toy
+					List<ToyMessage> curMsgs = ToyMessage.split(body);
+					for (int ii = 0; ii < curMsgs.size(); ii++) {
+						signalNewMessage(curMsgs.get(ii));
+					}
 					this.seenIDs.add(id);
 				}
 			}
@@ -14,13 +14,21 @@ The Initial Developer of the Original Code is Cool & Groovy Toy Company Ltd.
 */
 package uk.toy.messageproviders;
 
+import java.util.List;
+
+import org.marre.sms.SmsConcatReassembler;
+import org.marre.sms.SmsException;
+import org.marre.sms.SmsPduView;
+
 import uk.toy.ToyMessage;
+import uk.toy.ToyMessageBus;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
-import android.telephony.SmsMessage;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 /**
@@ -38,16 +46,63 @@ public class UnreadSMSProvider extends MessageProvider {
 	private final static String ACTION = "android.provider.Telephony.SMS_RECEIVED";
 	private final static String LOGTAG = "UnreadSMSProvider";
 	
+	/**
+	 * Time in ms to wait for the missing parts of a concatenated SMS.
+	 */
+	private final static long CONCAT_TIMEOUT = 60000;
+	
+	/**
+	 * Max size of the PDUs waiting for the rest of their message.
+	 */
+	private final static int CONCAT_MAX_PENDING_BYTES = 16 * 1024;
 	
 	private BroadcastReceiver receiver;
 	
+	/**
+	 * Joins the parts of concatenated SMS, the toy gets one message.
+	 */
+	private final SmsConcatReassembler<String> reassembler = new SmsConcatReassembler<String>(
+			new SmsConcatReassembler.Listener<String>() {
+				public void messageReassembled(String originator, List<String> parts, boolean complete) {
+					if (!complete) {
+						Log.d(LOGTAG, "Incomplete SMS from " + originator + ", " + parts.size() + " parts");
+					}
+					StringBuilder body = new StringBuilder();
+					for (int ii = 0; ii < parts.size(); ii++) {
+						body.append(parts.get(ii));
+					}
+					// the toy shows at most 160 septets per message
+					List<ToyMessage> msgs = ToyMessage.split(body.toString());
+					for (int ii = 0; ii < msgs.size(); ii++) {
+						signalNewMessage(msgs.get(ii));
+					}
+				}
+			}, CONCAT_TIMEOUT, CONCAT_MAX_PENDING_BYTES);
+	
+	/**
+	 * Passes on concatenated SMS that are still incomplete after the timeout.
+	 */
+	private final Runnable flushExpired = new Runnable() {
+		public void run() {
+			reassembler.flushExpired();
+			if (reassembler.getPendingCount() > 0) {
+				handler.postDelayed(this, CONCAT_TIMEOUT);
+			}
+		}
+	};
+	
+	/**
+	 * Broadcasts are received on the main thread, the timeout runs there too.
+	 */
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	
 	/**
 	 * Constructor for UnreadSMSProvider class.
 	 * 
 	 * @param ctx Application context
 	 */
-	public UnreadSMSProvider(Context ctx) {
-		super(ctx);
+	public UnreadSMSProvider(Context ctx, ToyMessageBus messageBus) {
+		super(ctx, messageBus);
 	}
 	
 	@Override
@@ -60,6 +115,12 @@ public class UnreadSMSProvider extends MessageProvider {
 	}
 	
 	private class SMSBroadcastReceiver extends BroadcastReceiver {
+		
+		/**
+		 * Reused for all incoming PDUs.
+		 */
+		private final SmsPduView view = new SmsPduView();
+		
 		@Override
 		public void onReceive(Context arg0, Intent arg1) {
 			if (! arg1.getAction().equals(ACTION)) {
@@ -73,17 +134,40 @@ public class UnreadSMSProvider extends MessageProvider {
 
 			for (int ii = 0; ii < pdusObj.length; ii++) {
 				byte[] curPDU = (byte[]) pdusObj[ii];
-				SmsMessage sms = SmsMessage.createFromPdu(curPDU);
-				ToyMessage curMSG = new ToyMessage(sms.getMessageBody());
-				signalNewMessage(curMSG);
+				// this runs on the main thread, a bad PDU must not take
+				// the app down
+				String address;
+				int udhOffset;
+				String text;
+				try {
+					view.wrap(curPDU);
+					address = view.getAddress();
+					udhOffset = view.getUserDataHeaderOffset();
+					text = view.getText();
+				} catch (SmsException e) {
+					Log.e(LOGTAG, "Dropping invalid PDU", e);
+					continue;
+				} catch (RuntimeException e) {
+					Log.e(LOGTAG, "Dropping undecodable PDU", e);
+					continue;
 				}
+				reassembler.add(address, curPDU, udhOffset, text, curPDU.length);
+			}
+			
+			handler.removeCallbacks(flushExpired);
+			if (reassembler.getPendingCount() > 0) {
+				handler.postDelayed(flushExpired, CONCAT_TIMEOUT);
 			}
+		}
 	}
-
+	
 	@Override
 	public void stopThread() {
 		if (this.receiver != null) {
 			this.ctx.unregisterReceiver(receiver);
+			this.handler.removeCallbacks(flushExpired);
+			// hand over whatever has arrived of incomplete SMS
+			this.reassembler.flushAll();
 		} else {
 			Log.d(LOGTAG, "Not unregistering receiver as receiver == null");
 		}